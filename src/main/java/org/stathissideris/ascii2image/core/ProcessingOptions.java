@@ -35,6 +35,10 @@ public class ProcessingOptions {
         processingOptions.setTabSize(i);
     }
 
+    public void setParallelism(int parallelism) {
+        processingOptions.setParallelism(parallelism);
+    }
+
     public void setCharacterEncoding(Charset characterEncoding) {
         processingOptions.setCharacterEncoding(characterEncoding);
     }
@@ -42,4 +46,8 @@ public class ProcessingOptions {
     public void setCustomShapes(HashMap<String, CustomShapeDefinition> customShapes) {
         processingOptions.setCustomShapes(customShapes);
     }
+
+    public void setHumanColorCodes(HashMap<String, String> humanColorCodes) {
+        processingOptions.setHumanColorCodes(humanColorCodes);
+    }
 }
@@ -13,4 +13,12 @@ public class TextGrid {
     public void initialiseWithText(String text, ProcessingOptions options) throws UnsupportedEncodingException {
         textGrid.initialiseWithText(text, options == null ? null : options.processingOptions);
     }
+
+    public void initialiseWithText(CharSequence text, int start, int end, ProcessingOptions options) {
+        textGrid.initialiseWithText(text, start, end, options == null ? null : options.processingOptions);
+    }
+
+    public void initialiseWithText(char[] text, int offset, int length, ProcessingOptions options) {
+        textGrid.initialiseWithText(text, offset, length, options == null ? null : options.processingOptions);
+    }
 }
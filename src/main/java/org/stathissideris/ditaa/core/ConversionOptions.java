@@ -59,6 +59,8 @@ public class ConversionOptions {
                 options.processingOptions.setOverwriteFiles(true);
             } else if (arg.equals("-S") || arg.equals("--no-shadows")) {
                 options.renderingOptions.setDropShadows(false);
+            } else if (arg.equals("--gaussian-shadows")) {
+                options.renderingOptions.setGaussianShadows(true);
             } else if (arg.equals("-A") || arg.equals("--no-antialias")) {
                 options.renderingOptions.setAntialias(false);
             } else if (arg.equals("-W") || arg.equals("--fixed-slope")) {
@@ -94,6 +96,8 @@ public class ConversionOptions {
                 options.renderingOptions.setFontURL(args.next());
             } else if (arg.equals("--bullet-characters")) {
                 options.processingOptions.setBulletCharacters(args.next());
+            } else if (arg.equals("--threads")) {
+                options.processingOptions.setParallelism(Integer.parseInt(args.next()));
             } else {
                 args.previous();
                 break;
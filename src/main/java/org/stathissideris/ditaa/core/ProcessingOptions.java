@@ -31,6 +31,12 @@ import java.util.HashMap;
 public class ProcessingOptions {
     private HashMap<String, CustomShapeDefinition> customShapes = new HashMap<String, CustomShapeDefinition>();
 
+    /**
+     * Human color codes on top of the built-in ones, as in
+     * <code>"GRE" -> "9D9"</code>: three char names mapped to three hex digits
+     */
+    private HashMap<String, String> humanColorCodes = new HashMap<String, String>();
+
     private boolean beVerbose = false;
     private boolean printDebugOutput = false;
     private boolean overwriteFiles = false;
@@ -63,6 +69,12 @@ public class ProcessingOptions {
     public static final String DEFAULT_BULLET_CHARS = "o*";
     private String bulletChars = DEFAULT_BULLET_CHARS;
 
+    /**
+     * How many threads look for shapes; 1 finds them all on the calling
+     * thread. The output is the same either way.
+     */
+    private int parallelism = 1;
+
     public boolean areAllCornersRound()
     {
         return allCornersAreRound;
@@ -173,6 +185,18 @@ public class ProcessingOptions {
         tabSize = i;
     }
 
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1, not " + parallelism);
+        this.parallelism = parallelism;
+    }
+
     public Charset getCharacterEncoding()
     {
         return characterEncoding;
@@ -211,5 +235,20 @@ public class ProcessingOptions {
         return customShapes.get(tagName);
     }
 
+    public HashMap<String, String> getHumanColorCodes()
+    {
+        return humanColorCodes;
+    }
+
+    public void setHumanColorCodes(HashMap<String, String> humanColorCodes)
+    {
+        this.humanColorCodes = humanColorCodes;
+    }
+
+    public void putAllInHumanColorCodes(HashMap<String, String> humanColorCodes)
+    {
+        this.humanColorCodes.putAll(humanColorCodes);
+    }
+
 
 }
@@ -59,6 +59,7 @@ public class RenderingOptions
     private HashMap<String, CustomShapeDefinition> customShapes;
 
     private boolean dropShadows = true;
+    private boolean gaussianShadows = false;
     private boolean renderDebugLines = false;
     private boolean antialias = true;
     private boolean fixedSlope = false;
@@ -117,6 +118,15 @@ public class RenderingOptions
         return dropShadows;
     }
 
+    /**
+     * Should shadows be blurred with a close approximation of a gaussian
+     * blur (true) or with a plain box blur (false, default)?
+     */
+    public boolean gaussianShadows()
+    {
+        return gaussianShadows;
+    }
+
     public boolean renderDebugLines()
     {
         return renderDebugLines;
@@ -132,6 +142,11 @@ public class RenderingOptions
         dropShadows = b;
     }
 
+    public void setGaussianShadows(boolean b)
+    {
+        gaussianShadows = b;
+    }
+
     public void setRenderDebugLines(boolean b)
     {
         renderDebugLines = b;
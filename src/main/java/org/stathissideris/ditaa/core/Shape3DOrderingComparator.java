@@ -34,8 +34,8 @@ public class Shape3DOrderingComparator implements Comparator<DiagramShape> {
      */
     public int compare(DiagramShape shape1, DiagramShape shape2)
     {
-        double y1 = shape1.makeIntoPath().getBounds().getCenterY();
-        double y2 = shape2.makeIntoPath().getBounds().getCenterY();
+        double y1 = shape1.getBounds().getCenterY();
+        double y2 = shape2.getBounds().getCenterY();
 
         if (y1 > y2) return -1;
         if (y1 < y2) return 1;
@@ -0,0 +1,111 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p/>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p/>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p/>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ditaa.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent tasks, either one after the other on the calling
+ * thread or on a ForkJoinPool. The results always come back in the order
+ * of the tasks, so whatever is made of them does not depend on how the
+ * tasks were scheduled.
+ */
+public class TaskRunner {
+
+    public static final TaskRunner SEQUENTIAL = new TaskRunner(null);
+
+    /**
+     * The runners handed out so far, by parallelism; their pools are
+     * shared between diagrams (the worker threads are daemons and go away
+     * when idle)
+     */
+    private static final HashMap<Integer, TaskRunner> runners = new HashMap<Integer, TaskRunner>();
+
+    private final ForkJoinPool pool;
+
+    private TaskRunner(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    public static TaskRunner withParallelism(int parallelism)
+    {
+        if (parallelism <= 1) return SEQUENTIAL;
+        synchronized (runners) {
+            TaskRunner runner = runners.get(parallelism);
+            if (runner == null) {
+                runner = new TaskRunner(new ForkJoinPool(parallelism));
+                runners.put(parallelism, runner);
+            }
+            return runner;
+        }
+    }
+
+    public boolean isParallel()
+    {
+        return pool != null;
+    }
+
+    public int getParallelism()
+    {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * Runs all the tasks and returns their results in the same order.
+     * An exception thrown by a task is thrown again from here.
+     */
+    public <T> List<T> runAll(List<? extends Callable<T>> tasks)
+    {
+        ArrayList<T> results = new ArrayList<T>(tasks.size());
+        if (pool == null || tasks.size() < 2) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return results;
+        }
+
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+        return results;
+    }
+}
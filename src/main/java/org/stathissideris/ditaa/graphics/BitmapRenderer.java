@@ -26,8 +26,11 @@ import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
 import java.awt.image.BufferedImage;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.util.ArrayList;
 import java.util.Collections;
 
@@ -39,6 +42,8 @@ public class BitmapRenderer {
 
     private static final boolean DEBUG = false;
 
+    private static final Color SHADOW_COLOR = new Color(150, 150, 150);
+
     Stroke normalStroke;
     Stroke dashStroke;
 
@@ -85,7 +90,9 @@ public class BitmapRenderer {
         if (DEBUG) System.out.println("Rendering " + shapes.size() + " shapes (groups flattened)");
 
         if (options.dropShadows()) {
-            //render shadows
+            //find the shadows
+            ArrayList<GeneralPath> shadows = new ArrayList<GeneralPath>();
+            Rectangle shadowBounds = null;
             for (DiagramShape shape : shapes) {
                 if (shape.getPoints().isEmpty()) continue;
 
@@ -100,36 +107,29 @@ public class BitmapRenderer {
                     AffineTransform translate = new AffineTransform();
                     translate.setToTranslation(offset, offset);
                     shadow.transform(translate);
-                    g2.setColor(new Color(150, 150, 150));
-                    g2.fill(shadow);
+                    shadows.add(shadow);
 
+                    //antialiasing may touch the pixels around the bounds
+                    Rectangle bounds = shadow.getBounds();
+                    bounds.grow(1, 1);
+                    if (shadowBounds == null) shadowBounds = bounds;
+                    else shadowBounds.add(bounds);
                 }
             }
 
+            //render and blur them
+            if (shadowBounds != null) {
+                BoxBlur blur = options.gaussianShadows() ? BoxBlur.GAUSSIAN : BoxBlur.BOX;
+                shadowBounds.grow(blur.getReach(), blur.getReach());
+                Rectangle area = shadowBounds.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+                if (!area.isEmpty()) renderShadows(shadows, area, blur, image, g2);
+            }
 
-            //blur shadows
-            int blurRadius = 6;
-            int blurRadius2 = blurRadius * blurRadius;
-            float weight = 1.0f / (float) blurRadius2;
-            float[] elements = new float[blurRadius2];
-            for (int k = 0; k < blurRadius2; k++)
-                elements[k] = weight;
-            Kernel myKernel = new Kernel(blurRadius, blurRadius, elements);
-
-            //if EDGE_NO_OP is not selected, EDGE_ZERO_FILL is the default which creates a black border
-            ConvolveOp simpleBlur = new ConvolveOp(myKernel, ConvolveOp.EDGE_NO_OP, null);
-
-            BufferedImage destination =
-                    new BufferedImage(
-                            image.getWidth(),
-                            image.getHeight(),
-                            image.getType());
-
-            simpleBlur.filter(image, destination);
-
-            g2 = (Graphics2D) destination.getGraphics();
+            //the shapes have always been drawn after the shadows by a fresh
+            //graphics that only has antialiasing set
+            g2.dispose();
+            g2 = image.createGraphics();
             g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasSetting);
-            renderedImage = destination;
         }
 
 
@@ -291,6 +291,106 @@ public class BitmapRenderer {
         return renderedImage;
     }
 
+    /**
+     * Draws the shadows on a mask of the <code>area</code> that only holds how
+     * much of each pixel they cover, blurs it, and lays the shadow colour
+     * over the image with the mask as its alpha
+     */
+    private static void renderShadows(ArrayList<GeneralPath> shadows, Rectangle area, BoxBlur blur,
+                                      BufferedImage image, Graphics2D g2)
+    {
+        BufferedImage mask = new BufferedImage(area.width, area.height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D maskGraphics = mask.createGraphics();
+        maskGraphics.setRenderingHints(g2.getRenderingHints());
+        maskGraphics.translate(-area.x, -area.y);
+        maskGraphics.setColor(Color.white);
+        for (GeneralPath shadow : shadows) {
+            maskGraphics.fill(shadow);
+        }
+        maskGraphics.dispose();
+
+        WritableRaster maskRaster = mask.getRaster();
+        DataBufferByte maskBuffer = (DataBufferByte) maskRaster.getDataBuffer();
+        byte[] coverage = maskBuffer.getData();
+        int maskScanline = ((ComponentSampleModel) maskRaster.getSampleModel()).getScanlineStride();
+        int maskOffset = maskBuffer.getOffset()
+                - maskRaster.getSampleModelTranslateY() * maskScanline
+                - maskRaster.getSampleModelTranslateX();
+        blur.blur(coverage, maskOffset, maskScanline, area.width, area.height);
+
+        int shadowRGB = SHADOW_COLOR.getRGB() & 0xFFFFFF;
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_RGB
+                || type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_INT_ARGB_PRE) {
+            WritableRaster raster = image.getRaster();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            int[] pixels = buffer.getData();
+            int scanline = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int offset = buffer.getOffset()
+                    - raster.getSampleModelTranslateY() * scanline
+                    - raster.getSampleModelTranslateX();
+            boolean straightAlpha = type == BufferedImage.TYPE_INT_ARGB;
+
+            for (int y = 0; y < area.height; y++) {
+                int maskRow = maskOffset + y * maskScanline;
+                int row = offset + (area.y + y) * scanline + area.x;
+                for (int x = 0; x < area.width; x++) {
+                    int alpha = coverage[maskRow + x] & 0xFF;
+                    if (alpha == 0) continue;
+                    pixels[row + x] = straightAlpha
+                            ? blendStraight(shadowRGB, alpha, pixels[row + x])
+                            : blendPremultiplied(shadowRGB, alpha, pixels[row + x]);
+                }
+            }
+        } else {
+            //let Java2D blend an ARGB copy of the shadows into any other kind of image
+            BufferedImage layer = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_ARGB);
+            int[] layerPixels = ((DataBufferInt) layer.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < area.height; y++) {
+                for (int x = 0; x < area.width; x++) {
+                    int alpha = coverage[maskOffset + y * maskScanline + x] & 0xFF;
+                    layerPixels[y * area.width + x] = alpha << 24 | shadowRGB;
+                }
+            }
+            g2.drawImage(layer, area.x, area.y, null);
+        }
+    }
+
+    /**
+     * Lays the opaque colour <code>rgb</code> with <code>alpha</code> over a
+     * pixel with premultiplied or no alpha
+     */
+    private static int blendPremultiplied(int rgb, int alpha, int pixel)
+    {
+        int source = 0xFF000000 | rgb;
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int s = (source >>> shift) & 0xFF;
+            int d = (pixel >>> shift) & 0xFF;
+            result |= ((s * alpha + d * (255 - alpha) + 127) / 255) << shift;
+        }
+        return result;
+    }
+
+    /**
+     * Lays the opaque colour <code>rgb</code> with <code>alpha</code> over a
+     * pixel with alpha that is not premultiplied
+     */
+    private static int blendStraight(int rgb, int alpha, int pixel)
+    {
+        int pixelAlpha = pixel >>> 24;
+        //the resulting alpha, times 255
+        int total = alpha * 255 + pixelAlpha * (255 - alpha);
+        int result = ((total + 127) / 255) << 24;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int s = (rgb >>> shift) & 0xFF;
+            int d = (pixel >>> shift) & 0xFF;
+            result |= ((s * alpha * 255 + d * pixelAlpha * (255 - alpha) + total / 2) / total) << shift;
+        }
+        return result;
+    }
+
     private void renderCustomShape(DiagramShape shape, Graphics2D g2)
     {
         CustomShapeDefinition definition = shape.getDefinition();
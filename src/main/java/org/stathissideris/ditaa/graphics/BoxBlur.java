@@ -0,0 +1,106 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p/>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p/>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p/>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ditaa.graphics;
+
+/**
+ * Blurs a single channel of byte samples in place with box filters, each
+ * run as a horizontal and then a vertical pass that keep a running sum of
+ * the samples under the box. Samples beyond the edges count as copies of
+ * the nearest edge sample.
+ */
+class BoxBlur {
+
+    /**
+     * A single 6 by 6 box, reaching 3 pixels back and 2 forward like the
+     * 6 by 6 kernel of a ConvolveOp does
+     */
+    static final BoxBlur BOX = new BoxBlur(new int[][]{{3, 2}});
+
+    /**
+     * Three boxes of 4, 3 and 4 pixels, which together come close to a
+     * gaussian blur of about the same spread as {@link #BOX}
+     */
+    static final BoxBlur GAUSSIAN = new BoxBlur(new int[][]{{2, 1}, {1, 1}, {1, 2}});
+
+    /**
+     * How far back and forward each box reaches
+     */
+    private final int[][] boxes;
+
+    private BoxBlur(int[][] boxes)
+    {
+        this.boxes = boxes;
+    }
+
+    /**
+     * @return how far the blur spreads a pixel in any direction
+     */
+    int getReach()
+    {
+        int reach = 0;
+        for (int[] box : boxes) reach += Math.max(box[0], box[1]);
+        return reach;
+    }
+
+    /**
+     * Blurs the <code>width</code> by <code>height</code> samples that are
+     * stored row after row <code>scanline</code> bytes apart, starting at
+     * <code>offset</code>
+     */
+    void blur(byte[] samples, int offset, int scanline, int width, int height)
+    {
+        if (width <= 0 || height <= 0) return;
+
+        int[] line = new int[Math.max(width, height)];
+        for (int[] box : boxes) {
+            for (int y = 0; y < height; y++) {
+                blurLine(samples, offset + y * scanline, 1, width, box[0], box[1], line);
+            }
+            for (int x = 0; x < width; x++) {
+                blurLine(samples, offset + x, scanline, height, box[0], box[1], line);
+            }
+        }
+    }
+
+    /**
+     * Replaces each of the <code>length</code> samples that start at
+     * <code>first</code> and are <code>step</code> apart with the average of
+     * the samples from <code>back</code> before it to <code>forward</code>
+     * after it
+     */
+    private static void blurLine(byte[] samples, int first, int step, int length, int back, int forward, int[] line)
+    {
+        for (int i = 0; i < length; i++) line[i] = samples[first + i * step] & 0xFF;
+
+        int size = back + forward + 1;
+        int sum = 0;
+        for (int k = -back; k <= forward; k++) sum += line[clamp(k, length)];
+
+        int half = size / 2;
+        for (int i = 0; i < length; i++) {
+            samples[first + i * step] = (byte) ((sum + half) / size);
+            sum += line[clamp(i + forward + 1, length)] - line[clamp(i - back, length)];
+        }
+    }
+
+    private static int clamp(int i, int length)
+    {
+        return i < 0 ? 0 : i >= length ? length - 1 : i;
+    }
+}
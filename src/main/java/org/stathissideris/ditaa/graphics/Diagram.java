@@ -19,9 +19,11 @@
 package org.stathissideris.ditaa.graphics;
 
 import org.stathissideris.ditaa.core.ConversionOptions;
-import org.stathissideris.ditaa.core.Pair;
+import org.stathissideris.ditaa.core.TaskRunner;
 import org.stathissideris.ditaa.text.AbstractionGrid;
+import org.stathissideris.ditaa.text.CellBitmap;
 import org.stathissideris.ditaa.text.CellSet;
+import org.stathissideris.ditaa.text.PreprocessedGrid;
 import org.stathissideris.ditaa.text.TextGrid;
 import org.stathissideris.ditaa.text.TextGrid.Cell;
 import org.stathissideris.ditaa.text.TextGrid.CellColorPair;
@@ -31,7 +33,16 @@ import org.stathissideris.ditaa.text.TextGrid.CellTagPair;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  *
@@ -43,10 +54,20 @@ public class Diagram {
     private static final boolean DEBUG_VERBOSE = false;
     private static final boolean DEBUG_MAKE_SHAPES = false;
 
+    private static final int EDGE_HORIZONTAL = 0;
+    private static final int EDGE_VERTICAL = 1;
+    private static final int EDGE_POINT = 2;
+
     private ArrayList<DiagramShape> shapes = new ArrayList<DiagramShape>();
     private ArrayList<CompositeDiagramShape> compositeShapes = new ArrayList<CompositeDiagramShape>();
     private ArrayList<DiagramText> textObjects = new ArrayList<DiagramText>();
 
+    /**
+     * Built when the shapes are first looked up by position, dropped
+     * whenever they change
+     */
+    private ShapeIndex shapeIndex;
+
     private int width, height;
     private int cellWidth, cellHeight;
 
@@ -118,9 +139,9 @@ public class Diagram {
         width = grid.getWidth() * cellWidth;
         height = grid.getHeight() * cellHeight;
 
-        TextGrid workGrid = new TextGrid(grid);
-        workGrid.replaceTypeOnLine();
-        workGrid.replacePointMarkersOnLine();
+        TaskRunner tasks = TaskRunner.withParallelism(options.processingOptions.getParallelism());
+        PreprocessedGrid preprocessed = grid.preprocess(tasks);
+        final TextGrid workGrid = preprocessed.workGrid;
         if (DEBUG) workGrid.printDebug(System.out);
 
         int width = grid.getWidth();
@@ -128,7 +149,7 @@ public class Diagram {
 
 
         //split distinct shapes using AbstractionGrid
-        AbstractionGrid temp = new AbstractionGrid(workGrid, workGrid.getAllBoundaries());
+        AbstractionGrid temp = new AbstractionGrid(workGrid, preprocessed.boundaries);
         ArrayList<CellSet> boundarySetsStep1 = temp.getDistinctShapes();
 
         if (DEBUG) {
@@ -140,59 +161,33 @@ public class Diagram {
         }
 
 
-        //Find all the boundaries by using the special version of the filling method
-        //(fills in a different buffer than the buffer it reads from)
-        ArrayList<CellSet> boundarySetsStep2 = new ArrayList<CellSet>();
-        for (CellSet set : boundarySetsStep1) {
-            //the fill buffer keeps track of which cells have been
-            //filled already
-            TextGrid fillBuffer = new TextGrid(width * 3, height * 3);
-
-            for (int yi = 0; yi < height * 3; yi++) {
-                for (int xi = 0; xi < width * 3; xi++) {
-                    if (fillBuffer.isBlank(xi, yi)) {
-
-                        TextGrid copyGrid = new AbstractionGrid(workGrid, set).getCopyOfInternalBuffer();
-
-                        CellSet boundaries =
-                                copyGrid
-                                        .findBoundariesExpandingFrom(new Cell(xi, yi));
-                        if (boundaries.size() == 0) continue; //i'm not sure why these occur
-                        boundarySetsStep2.add(boundaries.makeScaledOneThirdEquivalent());
-
-                        copyGrid = new AbstractionGrid(workGrid, set).getCopyOfInternalBuffer();
-                        CellSet filled =
-                                copyGrid
-                                        .fillContinuousArea(new Cell(xi, yi), '*');
-                        fillBuffer.fillCellsWith(filled, '*');
-                        fillBuffer.fillCellsWith(boundaries, '-');
-
-                        if (DEBUG) {
-                            //System.out.println("Fill buffer:");
-                            //fillBuffer.printDebug();
-                            boundaries.makeScaledOneThirdEquivalent().printAsGrid(System.out);
-                            System.out.println("-----------------------------------");
-                        }
-
-                    }
+        //Find all the boundaries of each distinct shape by filling
+        //(the shapes are filled into buffers of their own, so they can be
+        //done in parallel; the work grid is only read)
+        ArrayList<Callable<ArrayList<CellSet>>> fillTasks = new ArrayList<Callable<ArrayList<CellSet>>>();
+        for (final CellSet set : boundarySetsStep1) {
+            fillTasks.add(new Callable<ArrayList<CellSet>>() {
+                public ArrayList<CellSet> call()
+                {
+                    return findBoundariesByFilling(workGrid, set);
                 }
-            }
+            });
+        }
+        ArrayList<CellSet> boundarySetsStep2 = new ArrayList<CellSet>();
+        for (ArrayList<CellSet> sets : tasks.runAll(fillTasks)) {
+            boundarySetsStep2.addAll(sets);
         }
 
         if (DEBUG)
             System.out.println("******* Removed duplicates *******");
 
+        int originalSize = boundarySetsStep2.size();
         boundarySetsStep2 = CellSet.removeDuplicateSets(boundarySetsStep2);
 
         if (DEBUG) {
             for (CellSet set : boundarySetsStep2) {
                 set.printAsGrid(System.out);
             }
-        }
-
-        int originalSize = boundarySetsStep2.size();
-        boundarySetsStep2 = CellSet.removeDuplicateSets(boundarySetsStep2);
-        if (DEBUG) {
             System.out.println(
                     "******* Removed duplicates: there were "
                             + originalSize
@@ -210,6 +205,7 @@ public class Diagram {
         ArrayList<CellSet> closed = new ArrayList<CellSet>();
         ArrayList<CellSet> mixed = new ArrayList<CellSet>();
 
+        findTypes(tasks, boundarySetsStep2, workGrid);
         for (CellSet set : boundarySetsStep2) {
             int type = set.getType(workGrid);
             if (type == CellSet.TYPE_CLOSED) closed.add(set);
@@ -282,6 +278,7 @@ public class Diagram {
             closed = new ArrayList<CellSet>();
             mixed = new ArrayList<CellSet>();
 
+            findTypes(tasks, boundarySetsStep2, workGrid);
             for (CellSet set : boundarySetsStep2) {
                 int type = set.getType(workGrid);
                 if (type == CellSet.TYPE_CLOSED) closed.add(set);
@@ -308,13 +305,18 @@ public class Diagram {
             System.out.println("***** CLOSED: *****");
         }
 
+        //each shape only depends on its own set, so they are all made up
+        //front and then added in the order of the sets
+        List<DiagramShape> createdClosedShapes = createClosedShapes(tasks, workGrid, closed, allCornersRound);
+        List<DiagramComponent> createdOpenShapes = createOpenShapes(tasks, workGrid, open, allCornersRound);
+
         ArrayList<DiagramShape> closedShapes = new ArrayList<DiagramShape>();
-        for (CellSet set : closed) {
+        for (int i = 0; i < closed.size(); i++) {
             if (DEBUG_MAKE_SHAPES) {
-                set.printAsGrid(System.out);
+                closed.get(i).printAsGrid(System.out);
             }
 
-            DiagramShape shape = DiagramComponent.createClosedFromBoundaryCells(workGrid, set, cellWidth, cellHeight, allCornersRound);
+            DiagramShape shape = createdClosedShapes.get(i);
             if (shape != null) {
                 addToShapes(shape);
                 closedShapes.add(shape);
@@ -325,6 +327,7 @@ public class Diagram {
             separateCommonEdges(closedShapes);
 
         //make open shapes
+        Iterator<DiagramComponent> createdOpenShapesIterator = createdOpenShapes.iterator();
         for (CellSet set : open) {
             if (set.size() == 1) { //single cell "shape"
                 TextGrid.Cell cell = set.getFirst();
@@ -339,10 +342,7 @@ public class Diagram {
                 if (DEBUG)
                     System.out.println(set.getCellsAsString());
 
-                DiagramComponent shape =
-                        CompositeDiagramShape
-                                .createOpenFromBoundaryCells(
-                                        workGrid, set, cellWidth, cellHeight, allCornersRound);
+                DiagramComponent shape = createdOpenShapesIterator.next();
 
                 if (shape != null) {
                     if (shape instanceof CompositeDiagramShape) {
@@ -361,7 +361,7 @@ public class Diagram {
         //assign color codes to shapes
         //TODO: text on line should not change its color
 
-        for (CellColorPair pair : grid.findColorCodes()) {
+        for (CellColorPair pair : preprocessed.colorCodes) {
             ShapePoint point = new ShapePoint(getCellMidX(pair.cell), getCellMidY(pair.cell));
             DiagramShape containingShape = findSmallestShapeContaining(point);
 
@@ -370,7 +370,7 @@ public class Diagram {
         }
 
         //assign markup to shapes
-        for (CellTagPair pair : grid.findMarkupTags()) {
+        for (CellTagPair pair : preprocessed.markupTags) {
             ShapePoint point = new ShapePoint(getCellMidX(pair.cell), getCellMidY(pair.cell));
 
             DiagramShape containingShape = findSmallestShapeContaining(point);
@@ -451,14 +451,14 @@ public class Diagram {
         }
 
         //make arrowheads
-        for (Cell cell : workGrid.findArrowheads()) {
+        for (Cell cell : preprocessed.arrowheads) {
             DiagramShape arrowhead = DiagramShape.createArrowhead(workGrid, cell, cellWidth, cellHeight);
             if (arrowhead != null) addToShapes(arrowhead);
             else System.err.println("Could not create arrowhead shape. Unexpected error.");
         }
 
         //make point markers
-        for (Cell cell : grid.getPointMarkersOnLine()) {
+        for (Cell cell : preprocessed.pointMarkers) {
             DiagramShape mark = new DiagramShape();
             mark.addToPoints(new ShapePoint(
                     getCellMidX(cell),
@@ -466,7 +466,7 @@ public class Diagram {
             ));
             mark.setType(DiagramShape.TYPE_POINT_MARKER);
             mark.setFillColor(Color.white);
-            shapes.add(mark);
+            addToShapes(mark);
         }
 
         removeDuplicateShapes();
@@ -474,18 +474,16 @@ public class Diagram {
         if (DEBUG) System.out.println("Shape count: " + shapes.size());
         if (DEBUG) System.out.println("Composite shape count: " + compositeShapes.size());
 
-        //copy again
-        workGrid = new TextGrid(grid);
-        workGrid.removeNonText();
+        TextGrid textGrid = preprocessed.textGrid;
 
 
         // ****** handle text *******
         //break up text into groups
-        TextGrid textGroupGrid = new TextGrid(workGrid);
-        CellSet gaps = textGroupGrid.getAllBlanksBetweenCharacters();
+        TextGrid textGroupGrid = new TextGrid(textGrid);
+        CellSet gaps = textGroupGrid.getAllBlanksBetweenCharacters(tasks);
         //kludge
         textGroupGrid.fillCellsWith(gaps, '|');
-        CellSet nonBlank = textGroupGrid.getAllNonBlank();
+        CellSet nonBlank = textGroupGrid.getAllNonBlank(tasks);
         ArrayList<CellSet> textGroups = nonBlank.breakIntoDistinctBoundaries();
         if (DEBUG) System.out.println(textGroups.size() + " text groups found");
 
@@ -493,7 +491,7 @@ public class Diagram {
 
         for (CellSet textGroupCellSet : textGroups) {
             TextGrid isolationGrid = new TextGrid(width, height);
-            workGrid.copyCellsTo(textGroupCellSet, isolationGrid);
+            textGrid.copyCellsTo(textGroupCellSet, isolationGrid);
 
             ArrayList<CellStringPair> strings = isolationGrid.findStrings();
             for (CellStringPair pair : strings) {
@@ -580,6 +578,102 @@ public class Diagram {
         return shapes;
     }
 
+    /**
+     * Finds all the boundaries of a distinct shape by using the special version
+     * of the filling method on its abstraction buffer (marks the filled area
+     * with a char that is neither blank nor a boundary, so each blank area of
+     * the buffer is only filled once).
+     */
+    private static ArrayList<CellSet> findBoundariesByFilling(TextGrid workGrid, CellSet set)
+    {
+        ArrayList<CellSet> result = new ArrayList<CellSet>();
+        TextGrid fillBuffer = new AbstractionGrid(workGrid, set).getCopyOfInternalBuffer();
+
+        int width = workGrid.getWidth() * 3;
+        int height = workGrid.getHeight() * 3;
+        for (int yi = 0; yi < height; yi++) {
+            for (int xi = 0; xi < width; xi++) {
+                if (fillBuffer.get(xi, yi) == ' ') {
+
+                    CellSet boundaries =
+                            fillBuffer
+                                    .findBoundariesExpandingFrom(Cell.at(xi, yi));
+                    if (boundaries.size() == 0) continue; //i'm not sure why these occur
+                    result.add(boundaries.makeScaledOneThirdEquivalent());
+
+                    if (DEBUG) {
+                        //System.out.println("Fill buffer:");
+                        //fillBuffer.printDebug();
+                        boundaries.makeScaledOneThirdEquivalent().printAsGrid(System.out);
+                        System.out.println("-----------------------------------");
+                    }
+
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Works out the type of each set up front, so that the (cached) types
+     * can then be looked at in order
+     */
+    private static void findTypes(TaskRunner tasks, ArrayList<CellSet> sets, final TextGrid workGrid)
+    {
+        if (!tasks.isParallel()) return;
+        ArrayList<Callable<Integer>> typeTasks = new ArrayList<Callable<Integer>>();
+        for (final CellSet set : sets) {
+            typeTasks.add(new Callable<Integer>() {
+                public Integer call()
+                {
+                    return set.getType(workGrid);
+                }
+            });
+        }
+        tasks.runAll(typeTasks);
+    }
+
+    /**
+     * Makes the closed shape of each of the sets, in the same order (null
+     * where a set does not make one)
+     */
+    private List<DiagramShape> createClosedShapes(TaskRunner tasks, final TextGrid workGrid,
+                                                  ArrayList<CellSet> sets, final boolean allCornersRound)
+    {
+        ArrayList<Callable<DiagramShape>> shapeTasks = new ArrayList<Callable<DiagramShape>>();
+        for (final CellSet set : sets) {
+            shapeTasks.add(new Callable<DiagramShape>() {
+                public DiagramShape call()
+                {
+                    return DiagramComponent.createClosedFromBoundaryCells(
+                            workGrid, set, cellWidth, cellHeight, allCornersRound);
+                }
+            });
+        }
+        return tasks.runAll(shapeTasks);
+    }
+
+    /**
+     * Makes the open shapes of the sets that are more than a single cell,
+     * in the same order (null where a set does not make one)
+     */
+    private List<DiagramComponent> createOpenShapes(TaskRunner tasks, final TextGrid workGrid,
+                                                    ArrayList<CellSet> sets, final boolean allCornersRound)
+    {
+        ArrayList<Callable<DiagramComponent>> shapeTasks = new ArrayList<Callable<DiagramComponent>>();
+        for (final CellSet set : sets) {
+            if (set.size() == 1) continue;
+            shapeTasks.add(new Callable<DiagramComponent>() {
+                public DiagramComponent call()
+                {
+                    return CompositeDiagramShape.createOpenFromBoundaryCells(
+                            workGrid, set, cellWidth, cellHeight, allCornersRound);
+                }
+            });
+        }
+        return tasks.runAll(shapeTasks);
+    }
+
     /**
      * Removes the sets from <code>sets</code>that are the sum of their parts
      * when plotted as filled shapes.
@@ -594,8 +688,6 @@ public class Diagram {
 
         boolean removedAny = false;
 
-        ArrayList<CellSet> filledSets = new ArrayList<CellSet>();
-
         Iterator it;
 
         if (DEBUG_VERBOSE) {
@@ -607,33 +699,27 @@ public class Diagram {
             }
         }
 
-        //make filled versions of all the boundary sets
-        it = sets.iterator();
-        while (it.hasNext()) {
-            CellSet set = (CellSet) it.next();
-            set = set.getFilledEquivalent(grid);
-            if (set == null) {
-                return false;
-            } else filledSets.add(set);
+        //make filled versions of all the boundary sets, as bitmaps of the
+        //same size so that they can be compared a word at a time
+        int width = 0;
+        int height = 0;
+        for (CellSet set : sets) {
+            width = Math.max(width, set.getMaxX() + 2);
+            height = Math.max(height, set.getMaxY() + 2);
+        }
+        ArrayList<CellBitmap> filledSets = new ArrayList<CellBitmap>();
+        for (CellSet set : sets) {
+            filledSets.add(set.getFilledBitmap(grid, width, height));
         }
 
         ArrayList<Integer> toBeRemovedIndices = new ArrayList<Integer>();
-        it = filledSets.iterator();
-        while (it.hasNext()) {
-            CellSet set = (CellSet) it.next();
-
-            if (DEBUG_VERBOSE) {
-                System.out.println("*** Deciding if the following should be removed:");
-                set.printAsGrid(System.out);
-            }
+        for (CellBitmap set : filledSets) {
 
             //find the other sets that have common cells with set
-            ArrayList<CellSet> common = new ArrayList<CellSet>();
+            ArrayList<CellBitmap> common = new ArrayList<CellBitmap>();
             common.add(set);
-            Iterator<CellSet> it2 = filledSets.iterator();
-            while (it2.hasNext()) {
-                CellSet set2 = it2.next();
-                if (set != set2 && set.hasCommonCells(set2)) {
+            for (CellBitmap set2 : filledSets) {
+                if (set != set2 && set.intersects(set2)) {
                     common.add(set2);
                 }
             }
@@ -641,54 +727,25 @@ public class Diagram {
             if (common.size() == 2) continue;
 
             //find largest set
-            CellSet largest = set;
-            it2 = common.iterator();
-            while (it2.hasNext()) {
-                CellSet set2 = it2.next();
+            CellBitmap largest = set;
+            for (CellBitmap set2 : common) {
                 if (set2.size() > largest.size()) {
                     largest = set2;
                 }
             }
 
-            if (DEBUG_VERBOSE) {
-                System.out.println("Largest:");
-                largest.printAsGrid(System.out);
-            }
-
             //see if largest is sum of others
             common.remove(largest);
 
-            //make the sum set of the small sets on a grid
-            TextGrid gridOfSmalls = new TextGrid(largest.getMaxX() + 2, largest.getMaxY() + 2);
-            it2 = common.iterator();
-            while (it2.hasNext()) {
-                CellSet set2 = it2.next();
-                if (DEBUG_VERBOSE) {
-                    System.out.println("One of smalls:");
-                    set2.printAsGrid(System.out);
-                }
-                gridOfSmalls.fillCellsWith(set2, '*');
-            }
-            if (DEBUG_VERBOSE) {
-                System.out.println("Sum of smalls:");
-                gridOfSmalls.printDebug(System.out);
-            }
-            TextGrid gridLargest = new TextGrid(largest.getMaxX() + 2, largest.getMaxY() + 2);
-            gridLargest.fillCellsWith(largest, '*');
-
             int index = filledSets.indexOf(largest);
-            if (gridLargest.equals(gridOfSmalls)
+            if (largest.equalsUnionWithin(common, largest.getMaxX() + 2, largest.getMaxY() + 2)
                     && !toBeRemovedIndices.contains(index)) {
                 toBeRemovedIndices.add(index);
                 if (DEBUG) {
                     System.out.println("Decided to remove set:");
-                    largest.printAsGrid(System.out);
+                    sets.get(index).printAsGrid(System.out);
                 }
-            } /*else if (DEBUG){
-                System.out.println("This set WILL NOT be removed:");
-				largest.printAsGrid();
-			}*/
-            //if(gridLargest.equals(gridOfSmalls)) toBeRemovedIndices.add(new Integer(index));
+            }
         }
 
         ArrayList<CellSet> setsToBeRemoved = new ArrayList<CellSet>();
@@ -733,36 +790,119 @@ public class Diagram {
         }
 
         //group edges into pairs of touching edges
-        ArrayList<Pair<ShapeEdge, ShapeEdge>> listOfPairs = new ArrayList<Pair<ShapeEdge, ShapeEdge>>();
+        long[] pairs = findTouchingEdges(edges);
 
-        //all-against-all touching test for the edges
-        int startIndex = 1; //skip some to avoid duplicate comparisons and self-to-self comparisons
+        Set<ShapeEdge> movedEdges = Collections.newSetFromMap(new IdentityHashMap<ShapeEdge, Boolean>());
 
-        for (ShapeEdge edge1 : edges) {
-            for (int k = startIndex; k < edges.size(); k++) {
-                ShapeEdge edge2 = edges.get(k);
+        //move equivalent edges inwards
+        for (long pair : pairs) {
+            ShapeEdge first = edges.get((int) (pair >>> 32));
+            ShapeEdge second = edges.get((int) pair);
+            if (movedEdges.add(first)) first.moveInwardsBy(offset);
+            if (movedEdges.add(second)) second.moveInwardsBy(offset);
+        }
 
-                if (edge1.touchesWith(edge2)) {
-                    listOfPairs.add(new Pair<ShapeEdge, ShapeEdge>(edge1, edge2));
-                }
+    }
+
+    /**
+     * Finds the pairs of touching edges, each packed as the index of the
+     * first edge in the high and of the second in the low 32 bits, sorted
+     * in the order an all-against-all comparison would find them.
+     * <p/>
+     * Edges can only touch edges of the same orientation that lie on the
+     * same line, so the edges are sorted by orientation, line and start
+     * and each line is swept for overlapping intervals.
+     */
+    private static long[] findTouchingEdges(ArrayList<ShapeEdge> edges)
+    {
+        final int size = edges.size();
+        final int[] kind = new int[size];
+        final float[] line = new float[size];
+        final float[] start = new float[size];
+        final float[] end = new float[size];
+        Integer[] order = new Integer[size];
+
+        for (int i = 0; i < size; i++) {
+            ShapeEdge edge = edges.get(i);
+            ShapePoint p1 = edge.getStartPoint();
+            ShapePoint p2 = edge.getEndPoint();
+            boolean horizontal = edge.isHorizontal();
+            boolean vertical = edge.isVertical();
+            if (!horizontal && !vertical) return findTouchingEdgesPairwise(edges);
+            if (horizontal && vertical) { //a single point only touches itself
+                kind[i] = EDGE_POINT;
+                line[i] = p1.x;
+                start[i] = end[i] = p1.y;
+            } else if (horizontal) {
+                kind[i] = EDGE_HORIZONTAL;
+                line[i] = p1.y;
+                start[i] = Math.min(p1.x, p2.x);
+                end[i] = Math.max(p1.x, p2.x);
+            } else {
+                kind[i] = EDGE_VERTICAL;
+                line[i] = p1.x;
+                start[i] = Math.min(p1.y, p2.y);
+                end[i] = Math.max(p1.y, p2.y);
             }
-            startIndex++;
+            order[i] = i;
         }
 
-        ArrayList<ShapeEdge> movedEdges = new ArrayList<ShapeEdge>();
-
-        //move equivalent edges inwards
-        for (Pair<ShapeEdge, ShapeEdge> pair : listOfPairs) {
-            if (!movedEdges.contains(pair.first)) {
-                pair.first.moveInwardsBy(offset);
-                movedEdges.add(pair.first);
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2)
+            {
+                if (kind[i1] != kind[i2]) return kind[i1] - kind[i2];
+                if (line[i1] != line[i2]) return Float.compare(line[i1], line[i2]);
+                return Float.compare(start[i1], start[i2]);
+            }
+        });
+
+        long[] pairs = new long[16];
+        int pairCount = 0;
+        int[] active = new int[16];
+        int activeCount = 0;
+        for (int n = 0; n < size; n++) {
+            int i = order[n];
+            if (n == 0 || kind[i] != kind[order[n - 1]] || line[i] != line[order[n - 1]]) activeCount = 0;
+
+            //edges that only meet end to start do not touch, points touch
+            //only when they are the same
+            int kept = 0;
+            for (int a = 0; a < activeCount; a++) {
+                int other = active[a];
+                if (end[other] > start[i] || (kind[i] == EDGE_POINT && end[other] == start[i]))
+                    active[kept++] = other;
             }
-            if (!movedEdges.contains(pair.second)) {
-                pair.second.moveInwardsBy(offset);
-                movedEdges.add(pair.second);
+            activeCount = kept;
+
+            for (int a = 0; a < activeCount; a++) {
+                if (pairCount == pairs.length) pairs = Arrays.copyOf(pairs, pairCount * 2);
+                int other = active[a];
+                pairs[pairCount++] = other < i
+                        ? ((long) other << 32) | i
+                        : ((long) i << 32) | other;
             }
+            if (activeCount == active.length) active = Arrays.copyOf(active, activeCount * 2);
+            active[activeCount++] = i;
         }
 
+        pairs = Arrays.copyOf(pairs, pairCount);
+        Arrays.sort(pairs);
+        return pairs;
+    }
+
+    private static long[] findTouchingEdgesPairwise(ArrayList<ShapeEdge> edges)
+    {
+        long[] pairs = new long[16];
+        int pairCount = 0;
+        for (int i = 0; i < edges.size(); i++) {
+            for (int k = i + 1; k < edges.size(); k++) {
+                if (edges.get(i).touchesWith(edges.get(k))) {
+                    if (pairCount == pairs.length) pairs = Arrays.copyOf(pairs, pairCount * 2);
+                    pairs[pairCount++] = ((long) i << 32) | k;
+                }
+            }
+        }
+        return Arrays.copyOf(pairs, pairCount);
     }
 
 
@@ -770,26 +910,53 @@ public class Diagram {
     private void removeDuplicateShapes()
     {
         ArrayList<DiagramShape> originalShapes = new ArrayList<DiagramShape>();
+        //a shape without repeated points can only be equal to another such
+        //shape with the same fingerprint, the rest are compared to all
+        HashMap<Long, ArrayList<DiagramShape>> shapesByFingerprint = new HashMap<Long, ArrayList<DiagramShape>>();
 
         for (DiagramShape shape : getShapes()) {
+            boolean hasRepeatedPoints = shape.hasRepeatedPoints();
+            ArrayList<DiagramShape> candidates = originalShapes;
+            ArrayList<DiagramShape> bucket = null;
+            if (!hasRepeatedPoints) {
+                long fingerprint = shape.getFingerprint();
+                bucket = shapesByFingerprint.get(fingerprint);
+                if (bucket == null) {
+                    bucket = new ArrayList<DiagramShape>(1);
+                    shapesByFingerprint.put(fingerprint, bucket);
+                }
+                candidates = bucket;
+            }
             boolean isOriginal = true;
-            for (Object originalShape1 : originalShapes) {
-                DiagramShape originalShape = (DiagramShape) originalShape1;
+            for (DiagramShape originalShape : candidates) {
                 if (shape.equals(originalShape)) {
                     isOriginal = false;
+                    break;
                 }
             }
-            if (isOriginal) originalShapes.add(shape);
+            if (isOriginal) {
+                originalShapes.add(shape);
+                if (bucket != null) bucket.add(shape);
+            }
         }
 
         shapes.clear();
         shapes.addAll(originalShapes);
+        shapeIndex = null;
+    }
+
+    private ShapeIndex getShapeIndex()
+    {
+        if (shapeIndex == null) shapeIndex = new ShapeIndex(shapes, width, height, cellWidth, cellHeight);
+        return shapeIndex;
     }
 
     private DiagramShape findSmallestShapeContaining(ShapePoint point)
     {
         DiagramShape containingShape = null;
-        for (DiagramShape shape : getShapes()) {
+        BitSet candidates = getShapeIndex().getCandidatesAt(point);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            DiagramShape shape = shapes.get(i);
             if (shape.contains(point)) {
                 if (containingShape == null) {
                     containingShape = shape;
@@ -806,7 +973,9 @@ public class Diagram {
     private DiagramShape findSmallestShapeIntersecting(Rectangle2D rect)
     {
         DiagramShape intersectingShape = null;
-        for (DiagramShape shape : getShapes()) {
+        BitSet candidates = getShapeIndex().getCandidatesIntersecting(rect);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            DiagramShape shape = shapes.get(i);
             if (shape.intersects(rect)) {
                 if (intersectingShape == null) {
                     intersectingShape = shape;
@@ -834,6 +1003,7 @@ public class Diagram {
     private void addToShapes(DiagramShape shape)
     {
         shapes.add(shape);
+        shapeIndex = null;
     }
 
     public int getHeight()
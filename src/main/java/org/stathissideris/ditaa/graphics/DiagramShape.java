@@ -25,6 +25,7 @@ import java.awt.*;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Rectangle2D;
 import java.util.*;
+import java.util.List;
 
 /**
  *
@@ -61,6 +62,17 @@ public class DiagramShape extends DiagramComponent {
 
     CustomShapeDefinition definition = null;
 
+    /**
+     * Geometry worked out from the points, kept until they change (see
+     * {@link #geometryChanged()})
+     */
+    private GeneralPath path;
+    private Rectangle bounds;
+    private double area = -1;
+    private GeneralPath renderPath;
+    private Diagram renderPathDiagram;
+    private RenderingOptions renderPathOptions;
+
     public static DiagramShape createArrowhead(TextGrid grid, TextGrid.Cell cell, int cellXSize, int cellYSize)
     {
         if (!grid.isArrowhead(cell)) return null;
@@ -187,11 +199,30 @@ public class DiagramShape extends DiagramComponent {
     public void addToPoints(ShapePoint point)
     {
         points.add(point);
+        point.setOwner(this);
+        geometryChanged();
+    }
+
+    /**
+     * Drops the cached path, bounds, area and render path. Called when
+     * points are added or replaced, when the type or closedness changes
+     * and by the points themselves when they are moved with
+     * {@link ShapePoint#moveTo(ShapePoint)} or setLocation(); anything
+     * writing to the x and y of a point directly has to call it too.
+     */
+    public void geometryChanged()
+    {
+        path = null;
+        bounds = null;
+        area = -1;
+        renderPath = null;
+        renderPathDiagram = null;
+        renderPathOptions = null;
     }
 
     public Iterator getPointsIterator()
     {
-        return points.iterator();
+        return getPoints().iterator();
     }
 
     public void scale(float factor)
@@ -199,9 +230,9 @@ public class DiagramShape extends DiagramComponent {
         Iterator it = getPointsIterator();
         while (it.hasNext()) {
             ShapePoint point = (ShapePoint) it.next();
-            point.x *= factor;
-            point.y *= factor;
+            point.setLocation(point.x * factor, point.y * factor);
         }
+        geometryChanged();
     }
 
     public boolean isEmpty()
@@ -234,8 +265,8 @@ public class DiagramShape extends DiagramComponent {
      */
     public boolean isSmallerThan(DiagramShape other)
     {
-        Rectangle bounds = getBounds();
-        Rectangle otherBounds = other.getBounds();
+        Rectangle bounds = getCachedBounds();
+        Rectangle otherBounds = other.getCachedBounds();
 
         int area = bounds.height * bounds.width;
         int otherArea = otherBounds.height * otherBounds.width;
@@ -271,6 +302,7 @@ public class DiagramShape extends DiagramComponent {
     public void setClosed(boolean b)
     {
         isClosed = b;
+        geometryChanged();
     }
 
     public void printDebug()
@@ -279,9 +311,14 @@ public class DiagramShape extends DiagramComponent {
         System.out.println(points.size() + " points");
     }
 
-    public ArrayList<ShapePoint> getPoints()
+    /**
+     * @return the points, which cannot be added or removed through the
+     * list (see {@link #addToPoints(ShapePoint)} and
+     * {@link #setPoint(int, ShapePoint)})
+     */
+    public List<ShapePoint> getPoints()
     {
-        return points;
+        return Collections.unmodifiableList(points);
     }
 
     public ShapePoint getPoint(int i)
@@ -291,7 +328,9 @@ public class DiagramShape extends DiagramComponent {
 
     public void setPoint(int i, ShapePoint point)
     {
-        points.set(i, point);
+        points.set(i, point).setOwner(null);
+        point.setOwner(this);
+        geometryChanged();
     }
 
 
@@ -301,32 +340,13 @@ public class DiagramShape extends DiagramComponent {
         if (!(object instanceof DiagramShape)) {
             return false;
         } else shape = (DiagramShape) object;
-        if (getPoints().size() != shape.getPoints().size()) return false;
+        if (points.size() != shape.points.size()) return false;
 
-        if (DEBUG) System.out.println("comparing shapes:");
+        if (DEBUG) System.out.println("comparing shapes:\n" + this + "\n" + shape);
 
-        if (DEBUG) System.out.println("points1: ");
-        Set<String> points1 = new HashSet<String>();
-        Iterator it = getPointsIterator();
-        while (it.hasNext()) {
-            ShapePoint point = (ShapePoint) it.next();
-            points1.add("" + ((int) point.x) + "," + ((int) point.y));
-            if (DEBUG) System.out.println(((int) point.x) + ", " + ((int) point.y));
-        }
-
-        if (DEBUG) System.out.println("points2: ");
-        Set<String> points2 = new HashSet<String>();
-        it = shape.getPointsIterator();
-        while (it.hasNext()) {
-            ShapePoint point = (ShapePoint) it.next();
-            points2.add("" + ((int) point.x) + "," + ((int) point.y));
-            if (DEBUG) System.out.println(((int) point.x) + ", " + ((int) point.y));
-        }
-
-        it = points1.iterator();
-        while (it.hasNext()) {
-            String key = (String) it.next();
-            if (!points2.contains(key)) {
+        long[] points2 = shape.getSortedPointKeys();
+        for (ShapePoint point : points) {
+            if (Arrays.binarySearch(points2, keyOf(point)) < 0) {
                 if (DEBUG)
                     System.out.println("\tare not equal");
                 return false;
@@ -337,22 +357,74 @@ public class DiagramShape extends DiagramComponent {
         return true;
     }
 
+    /**
+     * An order independent 64-bit hash of the points of the shape, truncated
+     * to whole pixels as in {@link #equals(Object)}. Shapes that are equal
+     * and have no repeated points (see {@link #hasRepeatedPoints()}) have
+     * equal fingerprints.
+     */
+    public long getFingerprint()
+    {
+        long result = points.size();
+        for (ShapePoint point : points) {
+            long h = keyOf(point) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 32;
+            h *= 0xD6E8FEB86659FD93L;
+            result += h ^ (h >>> 32);
+        }
+        return result;
+    }
+
+    /**
+     * True if two of the points are the same once truncated to whole
+     * pixels.
+     */
+    public boolean hasRepeatedPoints()
+    {
+        long[] keys = getSortedPointKeys();
+        for (int i = 1; i < keys.length; i++) {
+            if (keys[i] == keys[i - 1]) return true;
+        }
+        return false;
+    }
+
+    private long[] getSortedPointKeys()
+    {
+        long[] keys = new long[points.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyOf(points.get(i));
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private static long keyOf(ShapePoint point)
+    {
+        return ((long) (int) point.x << 32) | ((int) point.y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The path is made once and shared until the points change, so it
+     * must not be modified.
+     */
     public GeneralPath makeIntoPath()
     {
-        int size = getPoints().size();
+        int size = points.size();
 
         if (size < 2) return null;
+        if (path != null) return path;
 
         GeneralPath path = new GeneralPath();
-        ShapePoint point = getPoints().get(0);
+        ShapePoint point = points.get(0);
         path.moveTo((int) point.x, (int) point.y);
         for (int i = 1; i < size; i++) {
-            point = getPoints().get(i);
+            point = points.get(i);
             path.lineTo((int) point.x, (int) point.y);
         }
         if (isClosed() && size > 2) {
             path.closePath();
         }
+        this.path = path;
         return path;
     }
 
@@ -397,12 +469,32 @@ public class DiagramShape extends DiagramComponent {
 
     public Rectangle getBounds()
     {
-        return makeIntoPath().getBounds();
+        return new Rectangle(getCachedBounds());
     }
 
+    private Rectangle getCachedBounds()
+    {
+        if (bounds == null) bounds = makeIntoPath().getBounds();
+        return bounds;
+    }
+
+    /**
+     * The render path is made once for a diagram and rendering options,
+     * and shared until the points change, so it must not be modified.
+     */
     public GeneralPath makeIntoRenderPath(Diagram diagram, RenderingOptions options)
     {
-        int size = getPoints().size();
+        if (renderPathDiagram == null || renderPathDiagram != diagram || renderPathOptions != options) {
+            renderPath = buildRenderPath(diagram, options);
+            renderPathDiagram = diagram;
+            renderPathOptions = options;
+        }
+        return renderPath;
+    }
+
+    private GeneralPath buildRenderPath(Diagram diagram, RenderingOptions options)
+    {
+        int size = points.size();
 
         if (getType() == TYPE_POINT_MARKER) {
             return makeMarkerPath(diagram);
@@ -439,11 +531,11 @@ public class DiagramShape extends DiagramComponent {
         if (size < 2) return null;
 
         GeneralPath path = new GeneralPath();
-        ShapePoint point = getPoints().get(0);
+        ShapePoint point = points.get(0);
         TextGrid.Cell cell = diagram.getCellFor(point);
         //path.moveTo((int) point.x, (int) point.y);
-        ShapePoint previous = getPoints().get(size - 1);
-        ShapePoint next = getPoints().get(1);
+        ShapePoint previous = points.get(size - 1);
+        ShapePoint next = points.get(1);
         ShapePoint entryPoint;
         ShapePoint exitPoint;
 
@@ -463,10 +555,10 @@ public class DiagramShape extends DiagramComponent {
 
         for (int i = 1; i < size; i++) {
             previous = point;
-            point = getPoints().get(i);
+            point = points.get(i);
             if (i < size - 1)
-                next = getPoints().get(i + 1);
-            else next = getPoints().get(0);
+                next = points.get(i + 1);
+            else next = points.get(0);
 
             cell = diagram.getCellFor(point);
 
@@ -658,6 +750,7 @@ public class DiagramShape extends DiagramComponent {
     public void setType(int i)
     {
         type = i;
+        geometryChanged();
     }
 
     public void moveEndsToCellEdges(TextGrid grid, Diagram diagram)
@@ -677,6 +770,7 @@ public class DiagramShape extends DiagramComponent {
         projectionPoint = getCellEdgeProjectionPointBetween(linesEnd, nextPoint, diagram);
 
         linesEnd.moveTo(projectionPoint);
+        geometryChanged();
     }
 
     public void connectEndsToAnchors(TextGrid grid, Diagram diagram)
@@ -695,7 +789,7 @@ public class DiagramShape extends DiagramComponent {
         nextPoint = points.get(points.size() - 2);
 
         connectEndToAnchors(grid, diagram, nextPoint, linesEnd);
-
+        geometryChanged();
     }
 
 
@@ -713,12 +807,10 @@ public class DiagramShape extends DiagramComponent {
         anchorCell = getPossibleAnchorCell(linesEnd, nextPoint, diagram);
 
         if (grid.isArrowhead(anchorCell)) {
-            linesEnd.x = diagram.getCellMidX(anchorCell);
-            linesEnd.y = diagram.getCellMidY(anchorCell);
+            linesEnd.setLocation(diagram.getCellMidX(anchorCell), diagram.getCellMidY(anchorCell));
             linesEnd.setLocked(true);
         } else if (grid.isCorner(anchorCell) || grid.isIntersection(anchorCell)) {
-            linesEnd.x = diagram.getCellMidX(anchorCell);
-            linesEnd.y = diagram.getCellMidY(anchorCell);
+            linesEnd.setLocation(diagram.getCellMidX(anchorCell), diagram.getCellMidY(anchorCell));
             linesEnd.setLocked(true);
         }
     }
@@ -774,7 +866,7 @@ public class DiagramShape extends DiagramComponent {
     private GeneralPath makeStoragePath(Diagram diagram)
     {
         if (points.size() != 4) return null;
-        Rectangle bounds = makeIntoPath().getBounds();
+        Rectangle bounds = getCachedBounds();
         ShapePoint point1 = new ShapePoint((float) bounds.getMinX(), (float) bounds.getMinY());
         ShapePoint point2 = new ShapePoint((float) bounds.getMaxX(), (float) bounds.getMinY());
         ShapePoint point3 = new ShapePoint((float) bounds.getMaxX(), (float) bounds.getMaxY());
@@ -825,7 +917,7 @@ public class DiagramShape extends DiagramComponent {
     private GeneralPath makeDocumentPath(Diagram diagram)
     {
         if (points.size() != 4) return null;
-        Rectangle bounds = makeIntoPath().getBounds();
+        Rectangle bounds = getCachedBounds();
         ShapePoint point1 = new ShapePoint((float) bounds.getMinX(), (float) bounds.getMinY());
         ShapePoint point2 = new ShapePoint((float) bounds.getMaxX(), (float) bounds.getMinY());
         ShapePoint point3 = new ShapePoint((float) bounds.getMaxX(), (float) bounds.getMaxY());
@@ -859,7 +951,7 @@ public class DiagramShape extends DiagramComponent {
     private GeneralPath makeEllipsePath(Diagram diagram)
     {
         if (points.size() != 4) return null;
-        Rectangle bounds = makeIntoPath().getBounds();
+        Rectangle bounds = getCachedBounds();
         float xOff = (float) bounds.getWidth() * 0.5f * KAPPA;
         float yOff = (float) bounds.getHeight() * 0.5f * KAPPA;
         ShapePoint pointMid = new ShapePoint((float) bounds.getCenterX(), (float) bounds.getCenterY());
@@ -883,7 +975,7 @@ public class DiagramShape extends DiagramComponent {
     private GeneralPath makeTrapezoidPath(Diagram diagram, RenderingOptions options, boolean inverted)
     {
         if (points.size() != 4) return null;
-        Rectangle bounds = makeIntoPath().getBounds();
+        Rectangle bounds = getCachedBounds();
         float offset = options.isFixedSlope() ? bounds.height / SHAPE_SLOPE : diagram.getCellWidth() * 0.5f;
         if (inverted) offset = -offset;
         ShapePoint ul = new ShapePoint((float) bounds.getMinX() + offset, (float) bounds.getMinY());
@@ -906,7 +998,7 @@ public class DiagramShape extends DiagramComponent {
     private GeneralPath makeDecisionPath(Diagram diagram)
     {
         if (points.size() != 4) return null;
-        Rectangle bounds = makeIntoPath().getBounds();
+        Rectangle bounds = getCachedBounds();
         ShapePoint pointMid = new ShapePoint((float) bounds.getCenterX(), (float) bounds.getCenterY());
         ShapePoint left = new ShapePoint((float) bounds.getMinX(), (float) pointMid.getY());
         ShapePoint right = new ShapePoint((float) bounds.getMaxX(), (float) pointMid.getY());
@@ -927,7 +1019,7 @@ public class DiagramShape extends DiagramComponent {
     private GeneralPath makeIOPath(Diagram diagram, RenderingOptions options)
     {
         if (points.size() != 4) return null;
-        Rectangle bounds = makeIntoPath().getBounds();
+        Rectangle bounds = getCachedBounds();
         ShapePoint point1 = new ShapePoint((float) bounds.getMinX(), (float) bounds.getMinY());
         ShapePoint point2 = new ShapePoint((float) bounds.getMaxX(), (float) bounds.getMinY());
         ShapePoint point3 = new ShapePoint((float) bounds.getMaxX(), (float) bounds.getMaxY());
@@ -963,6 +1055,7 @@ public class DiagramShape extends DiagramComponent {
     public double calculateArea()
     {
         if (points.size() == 0) return 0;
+        if (area >= 0) return area;
 
         double area = 0;
 
@@ -977,7 +1070,8 @@ public class DiagramShape extends DiagramComponent {
         area += point1.x * point2.y;
         area -= point2.x * point1.y;
 
-        return Math.abs(area / 2);
+        this.area = Math.abs(area / 2);
+        return this.area;
     }
 
 }
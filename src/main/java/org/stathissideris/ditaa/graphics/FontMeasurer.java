@@ -22,34 +22,69 @@ import java.awt.*;
 import java.awt.font.FontRenderContext;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
+ * Measures text and finds the font sizes that fit it. The fonts found are
+ * shared by all the measurers, so a font size is only searched for once
+ * per process. Measurers can be used from several threads at once.
  *
  * @author Efstathios Sideris
  */
 public class FontMeasurer {
 
+    /**
+     * The most fonts kept for each kind of search
+     */
+    private static final int MAX_CACHED_FONTS = 1024;
+
+    /**
+     * Used for everything but the ascent, which needs {@link #metricsGraphics}
+     * and so a lock on it. Render contexts are immutable.
+     */
+    private static final FontRenderContext fakeRenderContext;
+    private static final Graphics2D metricsGraphics;
+
+    static {
+        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        metricsGraphics = image.createGraphics();
+        fakeRenderContext = metricsGraphics.getFontRenderContext();
+    }
+
+    /**
+     * Fonts by base font and pixel height, see {@link #getFontFor(int)}
+     */
+    private static final Cache<FontKey, Font> fontsForHeight = new Cache<FontKey, Font>(MAX_CACHED_FONTS);
+
+    /**
+     * Fonts by base font, string and width, see {@link #getFontFor(int, String)}
+     */
+    private static final Cache<FontKey, Font> fontsForWidth = new Cache<FontKey, Font>(MAX_CACHED_FONTS);
+
+    /**
+     * Ascents by font, see {@link #getAscent(Font)}
+     */
+    private static final Cache<Font, Integer> ascents = new Cache<Font, Integer>(MAX_CACHED_FONTS);
+
+    /**
+     * Advance widths by font, see {@link #getWidthFor(String, Font)}
+     */
+    private static final Cache<Font, AdvanceTable> advanceTables = new Cache<Font, AdvanceTable>(MAX_CACHED_FONTS);
+
     private final Font baseFont;
     private final boolean fixedFontSize;
-    private FontRenderContext fakeRenderContext;
-    private Graphics2D fakeGraphics;
 
     public FontMeasurer(Font font, boolean fixedFontSize)
     {
         baseFont = font;
         this.fixedFontSize = fixedFontSize;
-
-        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
-        fakeGraphics = image.createGraphics();
-
-        fakeRenderContext = fakeGraphics.getFontRenderContext();
     }
 
     public int getWidthFor(String str, int pixelHeight)
     {
-        Font font = getFontFor(pixelHeight);
-        Rectangle2D rectangle = font.getStringBounds(str, fakeRenderContext);
-        return (int) rectangle.getWidth();
+        return getWidthFor(str, getFontFor(pixelHeight));
     }
 
     public int getHeightFor(String str, int pixelHeight)
@@ -59,8 +94,23 @@ public class FontMeasurer {
         return (int) rectangle.getHeight();
     }
 
+    /**
+     * Returns the same width as the bounds of the string would have. Strings
+     * of Latin and box drawing characters are measured by adding up the
+     * advances of their characters, the rest are laid out.
+     */
     public int getWidthFor(String str, Font font)
     {
+        //kerning, ligatures and the like change the advances
+        if (!font.hasLayoutAttributes()) {
+            AdvanceTable table = advanceTables.get(font);
+            if (table == null) {
+                table = new AdvanceTable(font);
+                advanceTables.put(font, table);
+            }
+            float width = table.getWidth(str);
+            if (width >= 0) return (int) width;
+        }
         Rectangle2D rectangle = font.getStringBounds(str, fakeRenderContext);
         return (int) rectangle.getWidth();
     }
@@ -78,9 +128,16 @@ public class FontMeasurer {
 
     public int getAscent(Font font)
     {
-        fakeGraphics.setFont(font);
-        FontMetrics metrics = fakeGraphics.getFontMetrics();
-        return metrics.getAscent();
+        Integer ascent = ascents.get(font);
+        if (ascent == null) {
+            synchronized (metricsGraphics) {
+                metricsGraphics.setFont(font);
+                FontMetrics metrics = metricsGraphics.getFontMetrics();
+                ascent = metrics.getAscent();
+            }
+            ascents.put(font, ascent);
+        }
+        return ascent;
     }
 
     public int getZHeight(Font font)
@@ -90,16 +147,26 @@ public class FontMeasurer {
 
     public Font getFontFor(final int maxWidth, final String string)
     {
-        FontPredicate predicate = new FontPredicate() {
-            @Override
-            public boolean test(Font font)
-            {
-                int width = getWidthFor(string, font);
-                return width > maxWidth;
-            }
-        };
+        if (fixedFontSize) {
+            return baseFont;
+        }
+
+        FontKey key = new FontKey(baseFont, string, maxWidth);
+        Font font = fontsForWidth.get(key);
+        if (font == null) {
+            FontPredicate predicate = new FontPredicate() {
+                @Override
+                public boolean test(Font font)
+                {
+                    int width = getWidthFor(string, font);
+                    return width > maxWidth;
+                }
+            };
 
-        return deriveFont(predicate, 1.0f);
+            font = deriveFont(predicate, 1.0f);
+            if (font != null) fontsForWidth.put(key, font);
+        }
+        return font;
     }
 
     public Font getFontFor(final int pixelHeight)
@@ -108,61 +175,224 @@ public class FontMeasurer {
             return baseFont;
         }
 
-        FontPredicate predicate = new FontPredicate() {
-            @Override
-            public boolean test(Font font)
-            {
-                //ascent is the distance between the baseline and the tallest character
-                int ascent = getAscent(font);
-                return ascent > pixelHeight;
-            }
-        };
+        FontKey key = new FontKey(baseFont, null, pixelHeight);
+        Font font = fontsForHeight.get(key);
+        if (font == null) {
+            FontPredicate predicate = new FontPredicate() {
+                @Override
+                public boolean test(Font font)
+                {
+                    //ascent is the distance between the baseline and the tallest character
+                    int ascent = getAscent(font);
+                    return ascent > pixelHeight;
+                }
+            };
 
-        return deriveFont(predicate, 0.5f);
+            font = deriveFont(predicate, 0.5f);
+            if (font != null) fontsForHeight.put(key, font);
+        }
+        return font;
     }
 
+    /**
+     * Finds the size that the predicate is about to become true at, which
+     * is assumed to only be true from some size upwards. Starting from the
+     * base font, sizes are tried <code>sizeDelta</code> apart: when the base
+     * font is too big, the largest smaller size for which the predicate is
+     * false; otherwise the largest bigger size before the predicate turns
+     * true. The sizes are searched by bisection rather than one by one.
+     *
+     * @return null if even the smallest size is too big
+     */
     private Font deriveFont(FontPredicate predicate, float sizeDelta)
     {
         if (fixedFontSize) {
             return baseFont;
         }
 
-        Font currentFont = baseFont;
         float size = baseFont.getSize2D();
 
-        int direction; //direction of size change (towards smaller or bigger)
-        if (predicate.test(currentFont)) {
-            currentFont = currentFont.deriveFont(size - 1f);
-            size--;
-            direction = -1;
-        } else {
-            currentFont = currentFont.deriveFont(size + 1f);
-            size++;
-            direction = 1;
-        }
-
-        while (size > 0) {
-            currentFont = currentFont.deriveFont(size);
-            //rectangle = currentFont.getStringBounds(testString, frc);
-            if (direction == 1) {
-                if (predicate.test(currentFont)) {
-                    size = size - sizeDelta;
-                    return currentFont.deriveFont(size);
+        if (predicate.test(baseFont)) {
+            //the candidates are size - 1 - step * sizeDelta, while above 0
+            int lastStep = (int) Math.ceil((size - 1f) / sizeDelta) - 1;
+            while (lastStep >= 0 && size - 1f - lastStep * sizeDelta <= 0) lastStep--;
+            while (size - 1f - (lastStep + 1) * sizeDelta > 0) lastStep++;
+            if (lastStep < 0 || predicate.test(baseFont.deriveFont(size - 1f - lastStep * sizeDelta))) {
+                return null;
+            }
+
+            //the predicate is true before low and false at high
+            int low = -1;
+            int high = lastStep;
+            while (high - low > 1) {
+                int middle = (low + high) >>> 1;
+                if (predicate.test(baseFont.deriveFont(size - 1f - middle * sizeDelta))) low = middle;
+                else high = middle;
+            }
+            return baseFont.deriveFont(size - 1f - high * sizeDelta);
+        }
+
+        //the candidates are size + 1 + step * sizeDelta; find one that is
+        //too big, doubling the step each time
+        int low = -1;
+        int high = 0;
+        while (!predicate.test(baseFont.deriveFont(size + 1f + high * sizeDelta))) {
+            low = high;
+            high = high * 2 + 1;
+        }
+
+        //the predicate is false at low and true at high
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+            if (predicate.test(baseFont.deriveFont(size + 1f + middle * sizeDelta))) high = middle;
+            else low = middle;
+        }
+        return baseFont.deriveFont(size + 1f + high * sizeDelta - sizeDelta);
+    }
+
+    private interface FontPredicate {
+        boolean test(Font font);
+    }
+
+    /**
+     * Identifies a font search: the font it starts from, the string to fit
+     * (null when fitting a height) and the width or height to fit in
+     */
+    private static final class FontKey {
+
+        private final Font font;
+        private final String string;
+        private final int size;
+
+        FontKey(Font font, String string, int size)
+        {
+            this.font = font;
+            this.string = string;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            FontKey key = (FontKey) o;
+
+            if (size != key.size) return false;
+            if (!font.equals(key.font)) return false;
+            return string == null ? key.string == null : string.equals(key.string);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = font.hashCode();
+            result = 31 * result + (string != null ? string.hashCode() : 0);
+            result = 31 * result + size;
+            return result;
+        }
+    }
+
+    /**
+     * The advances of the Latin, box drawing and block element characters
+     * in a font, measured the first time they are needed. Such characters
+     * are never laid out as complex text, so the bounds of a string of them
+     * are as wide as the sum of their advances, added up in order.
+     */
+    private static final class AdvanceTable {
+
+        private static final char LATIN_END = '\u0250';
+        private static final char BOX_DRAWING_START = '\u2500';
+        private static final char BOX_DRAWING_END = '\u25A0';
+
+        private final Font font;
+        private final float[] latin = new float[LATIN_END];
+        private final float[] boxDrawing = new float[BOX_DRAWING_END - BOX_DRAWING_START];
+
+        AdvanceTable(Font font)
+        {
+            this.font = font;
+            //threads that race to measure a character store the same value
+            Arrays.fill(latin, Float.NaN);
+            Arrays.fill(boxDrawing, Float.NaN);
+        }
+
+        /**
+         * @return the width of the string, or -1 if it has characters
+         * outside the table
+         */
+        float getWidth(String str)
+        {
+            float width = 0;
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                float[] advances;
+                int index;
+                if (c < LATIN_END) {
+                    advances = latin;
+                    index = c;
+                } else if (c >= BOX_DRAWING_START && c < BOX_DRAWING_END) {
+                    advances = boxDrawing;
+                    index = c - BOX_DRAWING_START;
                 } else {
-                    size = size + sizeDelta;
+                    return -1;
                 }
-            } else {
-                if (!predicate.test(currentFont)) {
-                    return currentFont;
-                } else {
-                    size = size - sizeDelta;
+                float advance = advances[index];
+                if (Float.isNaN(advance)) {
+                    advance = (float) font.getStringBounds(String.valueOf(c), fakeRenderContext).getWidth();
+                    advances[index] = advance;
                 }
+                width += advance;
             }
+            return width;
         }
-        return null;
     }
 
-    private interface FontPredicate {
-        boolean test(Font font);
+    /**
+     * A map that drops the least recently used entries when full, safe to
+     * use from several threads
+     */
+    private static final class Cache<K, V> {
+
+        private final LruMap<K, V> entries;
+
+        Cache(int capacity)
+        {
+            entries = new LruMap<K, V>(capacity);
+        }
+
+        synchronized V get(K key)
+        {
+            return entries.get(key);
+        }
+
+        synchronized void put(K key, V value)
+        {
+            entries.put(key, value);
+        }
+    }
+
+    /**
+     * A map in access order that drops the least recently used entry when
+     * it grows beyond its capacity.
+     */
+    private static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        LruMap(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+        {
+            return size() > capacity;
+        }
     }
 }
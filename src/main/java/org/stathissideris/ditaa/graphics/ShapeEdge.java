@@ -94,10 +94,9 @@ public class ShapeEdge {
 
     public void translate(float dx, float dy)
     {
-        startPoint.x += dx;
-        startPoint.y += dy;
-        endPoint.x += dx;
-        endPoint.y += dy;
+        startPoint.setLocation(startPoint.x + dx, startPoint.y + dy);
+        endPoint.setLocation(endPoint.x + dx, endPoint.y + dy);
+        if (owner != null) owner.geometryChanged();
     }
 
     public ShapePoint getMiddle()
@@ -0,0 +1,113 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p/>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p/>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p/>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ditaa.graphics;
+
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A uniform grid of buckets over a diagram, each holding the shapes whose
+ * bounds overlap it. Used to narrow down the shapes that might contain a
+ * point or intersect a rectangle before testing their paths.
+ */
+class ShapeIndex {
+
+    /**
+     * Width and height of a bucket, in cells
+     */
+    private static final int CELLS_PER_BUCKET = 4;
+
+    private final int bucketWidth;
+    private final int bucketHeight;
+    private final int columns;
+    private final int rows;
+
+    /**
+     * The indices of the shapes in each bucket, row after row
+     */
+    private final BitSet[] buckets;
+
+    ShapeIndex(List<DiagramShape> shapes, int width, int height, int cellWidth, int cellHeight)
+    {
+        bucketWidth = Math.max(cellWidth * CELLS_PER_BUCKET, 1);
+        bucketHeight = Math.max(cellHeight * CELLS_PER_BUCKET, 1);
+        columns = Math.max((width + bucketWidth - 1) / bucketWidth, 1);
+        rows = Math.max((height + bucketHeight - 1) / bucketHeight, 1);
+        buckets = new BitSet[columns * rows];
+
+        for (int i = 0; i < shapes.size(); i++) {
+            DiagramShape shape = shapes.get(i);
+            //shapes of less than two points contain nothing
+            if (shape.getPoints().size() < 2) continue;
+            Rectangle bounds = shape.getBounds();
+            int column2 = columnOf(bounds.getMaxX());
+            int row2 = rowOf(bounds.getMaxY());
+            for (int row = rowOf(bounds.getMinY()); row <= row2; row++) {
+                for (int column = columnOf(bounds.getMinX()); column <= column2; column++) {
+                    int bucket = row * columns + column;
+                    if (buckets[bucket] == null) buckets[bucket] = new BitSet();
+                    buckets[bucket].set(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * The indices of the shapes whose bounds might contain
+     * <code>point</code>, in the order of the shapes
+     */
+    BitSet getCandidatesAt(ShapePoint point)
+    {
+        BitSet bucket = buckets[rowOf(point.y) * columns + columnOf(point.x)];
+        return bucket == null ? new BitSet() : bucket;
+    }
+
+    /**
+     * The indices of the shapes whose bounds might intersect
+     * <code>rect</code>, in the order of the shapes
+     */
+    BitSet getCandidatesIntersecting(Rectangle2D rect)
+    {
+        BitSet result = new BitSet();
+        int column2 = columnOf(rect.getMaxX());
+        int row2 = rowOf(rect.getMaxY());
+        for (int row = rowOf(rect.getMinY()); row <= row2; row++) {
+            for (int column = columnOf(rect.getMinX()); column <= column2; column++) {
+                BitSet bucket = buckets[row * columns + column];
+                if (bucket != null) result.or(bucket);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Things off the edges of the diagram go to the buckets on the edges
+     */
+    private int columnOf(double x)
+    {
+        return Math.min(Math.max((int) Math.floor(x / bucketWidth), 0), columns - 1);
+    }
+
+    private int rowOf(double y)
+    {
+        return Math.min(Math.max((int) Math.floor(y / bucketHeight), 0), rows - 1);
+    }
+}
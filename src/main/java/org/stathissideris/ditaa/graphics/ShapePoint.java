@@ -31,6 +31,12 @@ public class ShapePoint extends java.awt.geom.Point2D.Float {
 
     private int type = 0;
 
+    /**
+     * The shape this is a point of, told when the point moves so that it
+     * can drop what it worked out from its points
+     */
+    private transient DiagramShape owner;
+
     public ShapePoint(float x, float y)
     {
         super(x, y);
@@ -53,6 +59,11 @@ public class ShapePoint extends java.awt.geom.Point2D.Float {
         return type;
     }
 
+    void setOwner(DiagramShape owner)
+    {
+        this.owner = owner;
+    }
+
     public boolean isWithinEdge(ShapeEdge edge)
     {
         if (edge.isHorizontal()) {
@@ -99,8 +110,26 @@ public class ShapePoint extends java.awt.geom.Point2D.Float {
     public void moveTo(ShapePoint point)
     {
         if (locked) return;
-        this.x = point.x;
-        this.y = point.y;
+        setLocation(point.x, point.y);
+    }
+
+    /**
+     * Moves the point and tells its shape. Writing to <code>x</code> and
+     * <code>y</code> directly does not, so the shape has to be told with
+     * {@link DiagramShape#geometryChanged()}.
+     */
+    @Override
+    public void setLocation(float x, float y)
+    {
+        super.setLocation(x, y);
+        if (owner != null) owner.geometryChanged();
+    }
+
+    @Override
+    public void setLocation(double x, double y)
+    {
+        super.setLocation(x, y);
+        if (owner != null) owner.geometryChanged();
     }
 
     public void setLocked(boolean b)
@@ -19,116 +19,108 @@
 package org.stathissideris.ditaa.text;
 
 /**
+ * The 3x3 block that a cell of a TextGrid turns into in an AbstractionGrid.
+ * Bit <code>y * 3 + x</code> of the mask is set if the sub-cell at
+ * <code>x</code>, <code>y</code> of the block is filled.
  *
  * @author Efstathios Sideris
  */
 public class AbstractCell {
 
-    public int rows[][] = new int[3][3];
+    //the masks read from the south row to the north one, and each row
+    //from east to west
+    private static final AbstractCell HORIZONTAL_LINE = new AbstractCell(0b000_111_000);
+    private static final AbstractCell VERTICAL_LINE = new AbstractCell(0b010_010_010);
+    private static final AbstractCell CORNER1 = new AbstractCell(0b010_110_000);
+    private static final AbstractCell CORNER2 = new AbstractCell(0b010_011_000);
+    private static final AbstractCell CORNER3 = new AbstractCell(0b000_011_010);
+    private static final AbstractCell CORNER4 = new AbstractCell(0b000_110_010);
+    private static final AbstractCell T = new AbstractCell(0b010_111_000);
+    private static final AbstractCell INVERSE_T = new AbstractCell(0b000_111_010);
+    private static final AbstractCell K = new AbstractCell(0b010_110_010);
+    private static final AbstractCell INVERSE_K = new AbstractCell(0b010_011_010);
+    private static final AbstractCell CROSS = new AbstractCell(0b010_111_010);
+    private static final AbstractCell STAR = new AbstractCell(0b111_111_111);
+
+    public final int mask;
+
+    private AbstractCell(int mask)
+    {
+        this.mask = mask;
+    }
+
+    /**
+     * @return the three bits of row <code>y</code> of the block, the
+     * westmost in the lowest bit
+     */
+    public int getRow(int y)
+    {
+        return (mask >>> (y * 3)) & 0b111;
+    }
 
+    public boolean isSet(int x, int y)
     {
-        for (int y = 0; y < 3; y++)
-            for (int x = 0; x < 3; x++)
-                rows[x][y] = 0;
+        return (mask & (1 << (y * 3 + x))) != 0;
     }
 
     static AbstractCell makeHorizontalLine()
     {
-        AbstractCell result = new AbstractCell();
-        result.rows[0][1] = 1;
-        result.rows[1][1] = 1;
-        result.rows[2][1] = 1;
-        return result;
+        return HORIZONTAL_LINE;
     }
 
     static AbstractCell makeVerticalLine()
     {
-        AbstractCell result = new AbstractCell();
-        result.rows[1][0] = 1;
-        result.rows[1][1] = 1;
-        result.rows[1][2] = 1;
-        return result;
+        return VERTICAL_LINE;
     }
 
     static AbstractCell makeCorner1()
     {
-        AbstractCell result = new AbstractCell();
-        result.rows[1][1] = 1;
-        result.rows[1][2] = 1;
-        result.rows[2][1] = 1;
-        return result;
+        return CORNER1;
     }
 
     static AbstractCell makeCorner2()
     {
-        AbstractCell result = new AbstractCell();
-        result.rows[0][1] = 1;
-        result.rows[1][1] = 1;
-        result.rows[1][2] = 1;
-        return result;
+        return CORNER2;
     }
 
     static AbstractCell makeCorner3()
     {
-        AbstractCell result = new AbstractCell();
-        result.rows[0][1] = 1;
-        result.rows[1][1] = 1;
-        result.rows[1][0] = 1;
-        return result;
+        return CORNER3;
     }
 
     static AbstractCell makeCorner4()
     {
-        AbstractCell result = new AbstractCell();
-        result.rows[2][1] = 1;
-        result.rows[1][1] = 1;
-        result.rows[1][0] = 1;
-        return result;
+        return CORNER4;
     }
 
     static AbstractCell makeT()
     {
-        AbstractCell result = AbstractCell.makeHorizontalLine();
-        result.rows[1][2] = 1;
-        return result;
+        return T;
     }
 
     static AbstractCell makeInverseT()
     {
-        AbstractCell result = AbstractCell.makeHorizontalLine();
-        result.rows[1][0] = 1;
-        return result;
+        return INVERSE_T;
     }
 
     static AbstractCell makeK()
     {
-        AbstractCell result = AbstractCell.makeVerticalLine();
-        result.rows[2][1] = 1;
-        return result;
+        return K;
     }
 
     static AbstractCell makeInverseK()
     {
-        AbstractCell result = AbstractCell.makeVerticalLine();
-        result.rows[0][1] = 1;
-        return result;
+        return INVERSE_K;
     }
 
     static AbstractCell makeCross()
     {
-        AbstractCell result = AbstractCell.makeVerticalLine();
-        result.rows[0][1] = 1;
-        result.rows[2][1] = 1;
-        return result;
+        return CROSS;
     }
 
     static AbstractCell makeStar()
     {
-        AbstractCell result = AbstractCell.makeVerticalLine();
-        for (int y = 0; y < 3; y++)
-            for (int x = 0; x < 3; x++)
-                result.rows[x][y] = 1;
-        return result;
+        return STAR;
     }
 
 
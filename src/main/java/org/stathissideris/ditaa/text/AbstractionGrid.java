@@ -28,7 +28,15 @@ public class AbstractionGrid {
 
     private static final boolean DEBUG = false;
 
-    private TextGrid grid;
+    /**
+     * The 3x buffer as a bitset, one bit per sub-cell, set if filled. Each
+     * row starts on a new word, bit <code>x % 64</code> of word
+     * <code>x / 64</code> of the row holding column <code>x</code>.
+     */
+    private long[] bits;
+    private int bufferWidth;
+    private int bufferHeight;
+    private int wordsPerRow;
 
     /**
      * Makes an AbstractionGrid using the <code>cellSet</code>
@@ -82,42 +90,69 @@ public class AbstractionGrid {
 
         if (DEBUG) {
             System.out.println("...the resulting AbstractionGrid is:");
-            grid.printDebug(System.out);
+            getCopyOfInternalBuffer().printDebug(System.out);
         }
     }
 
     private AbstractionGrid(int width, int height)
     {
-        grid = new TextGrid(width * 3, height * 3);
+        bufferWidth = width * 3;
+        bufferHeight = height * 3;
+        wordsPerRow = (bufferWidth + 63) >>> 6;
+        bits = new long[wordsPerRow * bufferHeight];
+    }
+
+    private void setBit(int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= bufferWidth || y >= bufferHeight) return;
+        bits[y * wordsPerRow + (x >>> 6)] |= 1L << x;
     }
 
     public TextGrid getCopyOfInternalBuffer()
     {
-        return new TextGrid(grid);
+        TextGrid result = new TextGrid(bufferWidth, bufferHeight);
+        for (int y = 0; y < bufferHeight; y++) {
+            for (int word = 0; word < wordsPerRow; word++) {
+                long w = bits[y * wordsPerRow + word];
+                while (w != 0) {
+                    result.set((word << 6) + Long.numberOfTrailingZeros(w), y, '*');
+                    w &= w - 1;
+                }
+            }
+        }
+        return result;
     }
 
     public int getWidth()
     {
-        return grid.getWidth() / 3;
+        return bufferWidth / 3;
     }
 
     public int getHeight()
     {
-        return grid.getHeight() / 3;
+        return bufferHeight / 3;
     }
 
     public TextGrid getAsTextGrid()
     {
         TextGrid result = new TextGrid(getWidth(), getHeight());
-        for (int y = 0; y < grid.getHeight(); y++) {
-            for (int x = 0; x < grid.getWidth(); x++) {
-                TextGrid.Cell cell = new TextGrid.Cell(x, y);
-                if (!grid.isBlank(cell)) result.set(x / 3, y / 3, '*');
+        for (int y = 0; y < getHeight(); y++) {
+            int row = y * 3 * wordsPerRow;
+            for (int word = 0; word < wordsPerRow; word++) {
+                //any filled sub-cell in the three rows of the block
+                long w = bits[row + word]
+                        | bits[row + wordsPerRow + word]
+                        | bits[row + 2 * wordsPerRow + word];
+                while (w != 0) {
+                    int x = (word << 6) + Long.numberOfTrailingZeros(w);
+                    result.set(x / 3, y, '*');
+                    w &= w - 1;
+                }
             }
         }
         if (DEBUG) {
             System.out.println("Getting AbstractionGrid as textGrid.\nAbstractionGrid:");
-            grid.printDebug(System.out);
+            getCopyOfInternalBuffer().printDebug(System.out);
             System.out.println("...as text grid:");
             result.printDebug(System.out);
         }
@@ -125,37 +160,52 @@ public class AbstractionGrid {
         return result;
     }
 
+    /**
+     * @return the connected parts of the abstraction, each as the set of
+     * the cells of the original grid that it covers
+     */
     public ArrayList<CellSet> getDistinctShapes()
     {
-        ArrayList<CellSet> result = new ArrayList<CellSet>();
-
-        CellSet nonBlank = grid.getAllNonBlank();
-        ArrayList<CellSet> distinct = nonBlank.breakIntoDistinctBoundaries();
-
-        for (CellSet set : distinct) {
-            AbstractionGrid temp = new AbstractionGrid(this.getWidth(), this.getHeight());
-            temp.fillCells(set);
-            result.add(temp.getAsTextGrid().getAllNonBlank());
+        CellSet nonBlank = new CellSet();
+        for (int y = 0; y < bufferHeight; y++) {
+            for (int word = 0; word < wordsPerRow; word++) {
+                long w = bits[y * wordsPerRow + word];
+                while (w != 0) {
+                    nonBlank.add((word << 6) + Long.numberOfTrailingZeros(w), y);
+                    w &= w - 1;
+                }
+            }
         }
-
-        return result;
+        return nonBlank.breakIntoDistinctBoundariesScaledDownBy(3);
     }
 
     protected void fillCells(CellSet cells)
     {
-        grid.fillCellsWith(cells, '*');
+        for (TextGrid.Cell cell : cells) {
+            setBit(cell.x, cell.y);
+        }
     }
 
     public void set(int xPos, int yPos, AbstractCell cell)
     {
         xPos *= 3;
         yPos *= 3;
-        for (int y = 0; y < 3; y++) {
-            for (int x = 0; x < 3; x++) {
-                if (cell.rows[x][y] == 1) {
-                    grid.set(xPos + x, yPos + y, '*');
+        if (xPos < 0 || yPos < 0 || xPos + 3 > bufferWidth || yPos + 3 > bufferHeight) {
+            for (int y = 0; y < 3; y++) {
+                for (int x = 0; x < 3; x++) {
+                    if (cell.isSet(x, y)) setBit(xPos + x, yPos + y);
                 }
             }
+            return;
+        }
+        int word = xPos >>> 6;
+        int shift = xPos & 63;
+        for (int y = 0; y < 3; y++) {
+            long row = cell.getRow(y);
+            int index = (yPos + y) * wordsPerRow + word;
+            bits[index] |= row << shift;
+            //the block may straddle two words
+            if (shift > 61) bits[index + 1] |= row >>> (64 - shift);
         }
     }
 
@@ -0,0 +1,201 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p/>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p/>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p/>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ditaa.text;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of the cells of a fixed width and height area, one bit per cell,
+ * row after row. Bitmaps of the same area can be intersected, merged and
+ * compared a word at a time.
+ */
+public class CellBitmap {
+
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    private int size = 0;
+    private int minX = Integer.MAX_VALUE;
+    private int maxX = -1;
+    private int minY = Integer.MAX_VALUE;
+    private int maxY = -1;
+
+    public CellBitmap(int width, int height)
+    {
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("Bitmap size must not be negative: " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        wordsPerRow = (width + 63) >>> 6;
+        words = new long[wordsPerRow * height];
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @return the number of cells in the bitmap
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public int getMinX()
+    {
+        return minX;
+    }
+
+    public int getMaxX()
+    {
+        return maxX;
+    }
+
+    public int getMinY()
+    {
+        return minY;
+    }
+
+    public int getMaxY()
+    {
+        return maxY;
+    }
+
+    public boolean contains(int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= width || y >= height) return false;
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * Adds the cell at <code>x</code>, <code>y</code>, unless it is
+     * outside the bitmap
+     */
+    public void add(int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= width || y >= height) return;
+        addRun(x, x, y);
+    }
+
+    /**
+     * Adds the cells of row <code>y</code> from <code>left</code> to
+     * <code>right</code> inclusive, all of which must be inside the bitmap
+     */
+    void addRun(int left, int right, int y)
+    {
+        int rowStart = y * wordsPerRow;
+        for (int word = left >>> 6; word <= right >>> 6; word++) {
+            long mask = -1L;
+            if (word == left >>> 6) mask &= -1L << left;
+            if (word == right >>> 6) mask &= -1L >>> (63 - (right & 63));
+            long old = words[rowStart + word];
+            words[rowStart + word] = old | mask;
+            size += Long.bitCount(mask & ~old);
+        }
+        if (left < minX) minX = left;
+        if (right > maxX) maxX = right;
+        if (y < minY) minY = y;
+        if (y > maxY) maxY = y;
+    }
+
+    /**
+     * @return true if the two bitmaps, which must be of the same size,
+     * have at least one cell in common
+     */
+    public boolean intersects(CellBitmap other)
+    {
+        checkSameSize(other);
+        int fromY = Math.max(minY, other.minY);
+        int toY = Math.min(maxY, other.maxY);
+        int fromX = Math.max(minX, other.minX);
+        int toX = Math.min(maxX, other.maxX);
+        if (fromY > toY || fromX > toX) return false;
+
+        for (int y = fromY; y <= toY; y++) {
+            int rowStart = y * wordsPerRow;
+            for (int word = fromX >>> 6; word <= toX >>> 6; word++) {
+                if ((words[rowStart + word] & other.words[rowStart + word]) != 0) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the cells of this bitmap within the top left
+     * <code>areaWidth</code> by <code>areaHeight</code> cells are exactly the
+     * cells of <code>parts</code> within the same area. All the bitmaps
+     * must be of the same size.
+     */
+    public boolean equalsUnionWithin(List<CellBitmap> parts, int areaWidth, int areaHeight)
+    {
+        for (CellBitmap part : parts) checkSameSize(part);
+        areaWidth = Math.min(areaWidth, width);
+        areaHeight = Math.min(areaHeight, height);
+        if (areaWidth <= 0) return true;
+
+        int lastWord = (areaWidth - 1) >>> 6;
+        long lastMask = -1L >>> (63 - ((areaWidth - 1) & 63));
+        for (int y = 0; y < areaHeight; y++) {
+            int rowStart = y * wordsPerRow;
+            for (int word = 0; word <= lastWord; word++) {
+                long union = 0;
+                for (CellBitmap part : parts) union |= part.words[rowStart + word];
+                long difference = union ^ words[rowStart + word];
+                if (word == lastWord) difference &= lastMask;
+                if (difference != 0) return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkSameSize(CellBitmap other)
+    {
+        if (other.width != width || other.height != height)
+            throw new IllegalArgumentException("Bitmaps of different sizes: "
+                    + width + "x" + height + " and " + other.width + "x" + other.height);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        CellBitmap bitmap = (CellBitmap) o;
+
+        return width == bitmap.width && height == bitmap.height
+                && size == bitmap.size && Arrays.equals(words, bitmap.words);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(words);
+    }
+}
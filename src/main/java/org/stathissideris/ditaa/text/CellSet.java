@@ -36,55 +36,260 @@ public class CellSet implements Iterable<TextGrid.Cell> {
     public static final int TYPE_HAS_CLOSED_AREA = 3;
     public static final int TYPE_UNDETERMINED = 4;
 
-    private static final Comparator<TextGrid.Cell> CELL_COMPARATOR = (o1, o2) -> {
-        int yResult = Integer.compare(o1.y, o2.y);
-        if (yResult == 0) {
-            return Integer.compare(o1.x, o2.x);
-        } else {
-            return yResult;
-        }
-    };
+    /**
+     * Marks the free slots of {@link #table}. It is the key of the cell at
+     * (Integer.MIN_VALUE, Integer.MIN_VALUE), which never turns up.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * The keys of the cells (see {@link #key(int, int)}) in an open
+     * addressing hash table with linear probing.
+     */
+    private long[] table;
+    private int size = 0;
+
+    /**
+     * Sum of the hashes of the keys (see {@link #getFingerprint()})
+     */
+    private long fingerprint = 0;
 
-    Set<TextGrid.Cell> internalSet = new TreeSet<>(CELL_COMPARATOR);
+    /**
+     * The keys in ascending order, which is the y-then-x order of the
+     * iterator. Built on demand, null after any change.
+     */
+    private long[] sortedKeys;
+
+    private int minX = Integer.MAX_VALUE;
+    private int maxX = 0;
+    private int minY = Integer.MAX_VALUE;
+    private int maxY = 0;
+    private boolean boundsAreValid = true;
 
     private int type = TYPE_UNDETERMINED;
     private boolean typeIsValid = false;
 
     public CellSet()
     {
-
+        table = new long[INITIAL_CAPACITY];
+        Arrays.fill(table, EMPTY);
     }
 
     public CellSet(CellSet other)
     {
-        addAll(other);
+        table = other.table.clone();
+        size = other.size;
+        fingerprint = other.fingerprint;
+        sortedKeys = other.sortedKeys;
+        minX = other.minX;
+        maxX = other.maxX;
+        minY = other.minY;
+        maxY = other.maxY;
+        boundsAreValid = other.boundsAreValid;
+    }
+
+    /**
+     * Packs the coordinates of a cell into a long that sorts like the
+     * cells do: by y, then by x.
+     */
+    private static long key(int x, int y)
+    {
+        return ((long) y << 32) | ((x ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    private static int xOf(long key)
+    {
+        return (int) key ^ Integer.MIN_VALUE;
+    }
+
+    private static int yOf(long key)
+    {
+        return (int) (key >> 32);
+    }
+
+    private static TextGrid.Cell cellOf(long key)
+    {
+        return TextGrid.Cell.at(xOf(key), yOf(key));
+    }
+
+    /**
+     * A well mixed 64-bit hash of a key
+     */
+    private static long hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        return h ^ (h >>> 32);
+    }
+
+    private int slotOf(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (table.length - 1);
+    }
+
+    private boolean containsKey(long key)
+    {
+        int mask = table.length - 1;
+        for (int i = slotOf(key); ; i = (i + 1) & mask) {
+            long k = table[i];
+            if (k == key) return true;
+            if (k == EMPTY) return false;
+        }
+    }
+
+    private boolean addKey(long key)
+    {
+        int mask = table.length - 1;
+        int i = slotOf(key);
+        for (long k = table[i]; k != EMPTY; k = table[i]) {
+            if (k == key) return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = key;
+        size++;
+        fingerprint += hash(key);
+        sortedKeys = null;
+        if (boundsAreValid) {
+            int x = xOf(key);
+            int y = yOf(key);
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+        }
+        if (size * 2 > table.length) rehash(table.length * 2);
+        return true;
+    }
+
+    private boolean removeKey(long key)
+    {
+        int mask = table.length - 1;
+        int i = slotOf(key);
+        for (long k = table[i]; k != key; k = table[i]) {
+            if (k == EMPTY) return false;
+            i = (i + 1) & mask;
+        }
+        //shift back the keys that probed past the freed slot
+        for (int j = (i + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slotOf(table[j]);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = EMPTY;
+        size--;
+        fingerprint -= hash(key);
+        sortedKeys = null;
+        int x = xOf(key);
+        int y = yOf(key);
+        if (x == minX || x == maxX || y == minY || y == maxY) boundsAreValid = false;
+        return true;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldTable = table;
+        table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        int mask = capacity - 1;
+        for (long key : oldTable) {
+            if (key == EMPTY) continue;
+            int i = slotOf(key);
+            while (table[i] != EMPTY) i = (i + 1) & mask;
+            table[i] = key;
+        }
+    }
+
+    private long[] getSortedKeys()
+    {
+        if (sortedKeys == null) {
+            long[] keys = new long[size];
+            int n = 0;
+            for (long key : table) {
+                if (key != EMPTY) keys[n++] = key;
+            }
+            Arrays.sort(keys);
+            sortedKeys = keys;
+        }
+        return sortedKeys;
+    }
+
+    private void validateBounds()
+    {
+        if (boundsAreValid) return;
+        minX = Integer.MAX_VALUE;
+        maxX = 0;
+        minY = Integer.MAX_VALUE;
+        maxY = 0;
+        for (long key : table) {
+            if (key == EMPTY) continue;
+            int x = xOf(key);
+            int y = yOf(key);
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+        }
+        boundsAreValid = true;
     }
 
     public Iterator<TextGrid.Cell> iterator()
     {
-        return internalSet.iterator();
+        final long[] keys = getSortedKeys();
+        return new Iterator<TextGrid.Cell>() {
+            private int next = 0;
+
+            public boolean hasNext()
+            {
+                return next < keys.length;
+            }
+
+            public TextGrid.Cell next()
+            {
+                if (next >= keys.length) throw new NoSuchElementException();
+                return cellOf(keys[next++]);
+            }
+
+            public void remove()
+            {
+                if (next == 0) throw new IllegalStateException();
+                typeIsValid = false;
+                removeKey(keys[next - 1]);
+            }
+        };
     }
 
     public void add(TextGrid.Cell cell)
     {
-        internalSet.add(cell);
+        addKey(key(cell.x, cell.y));
+    }
+
+    void add(int x, int y)
+    {
+        addKey(key(x, y));
     }
 
     public void addAll(CellSet set)
     {
-        for (TextGrid.Cell cell : set) {
-            add(cell);
+        for (long key : set.table) {
+            if (key != EMPTY) addKey(key);
         }
     }
 
     public int size()
     {
-        return internalSet.size();
+        return size;
     }
 
     public TextGrid.Cell getFirst()
     {
-        return internalSet.iterator().next();
+        if (size == 0) throw new NoSuchElementException();
+        return cellOf(getSortedKeys()[0]);
     }
 
     public void printAsGrid(PrintStream out)
@@ -114,17 +319,12 @@ public class CellSet implements Iterable<TextGrid.Cell> {
     }
 
     /**
-     * Deep copy
+     * Deep copy (cells are immutable, so this is the same as the copy
+     * constructor)
      */
     public static CellSet copyCellSet(CellSet set)
     {
-        CellSet newSet = new CellSet();
-
-        for (TextGrid.Cell cell : set) {
-            TextGrid.Cell newCell = new TextGrid.Cell(cell);
-            newSet.add(newCell);
-        }
-        return newSet;
+        return new CellSet(set);
     }
 
     public int getType(TextGrid grid)
@@ -257,7 +457,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
         TextGrid.Cell fillCell = null;
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
-                TextGrid.Cell cCell = new TextGrid.Cell(x, y);
+                TextGrid.Cell cCell = TextGrid.Cell.at(x, y);
                 if (temp.isBlank(cCell)) {
                     fillCell = cCell;
                     break;
@@ -283,30 +483,33 @@ public class CellSet implements Iterable<TextGrid.Cell> {
     public void translate(int dx, int dy)
     {
         typeIsValid = false;
-        TreeSet<TextGrid.Cell> newSet = new TreeSet<>(CELL_COMPARATOR);
-        for (TextGrid.Cell oldCell : internalSet) {
-            newSet.add(new TextGrid.Cell(oldCell.x + dx, oldCell.y + dy));
+        long[] keys = getSortedKeys();
+        table = new long[table.length];
+        Arrays.fill(table, EMPTY);
+        size = 0;
+        fingerprint = 0;
+        boundsAreValid = false;
+        for (long key : keys) {
+            addKey(key(xOf(key) + dx, yOf(key) + dy));
         }
-        internalSet = newSet;
     }
 
     public TextGrid.Cell find(TextGrid.Cell cell)
     {
-        for (TextGrid.Cell cCell : this) {
-            if (cCell.equals(cell)) return cCell;
-        }
-        return null;
+        return contains(cell) ? cell : null;
     }
 
     public boolean contains(TextGrid.Cell cell)
     {
-        return cell != null && internalSet.contains(cell);
+        return cell != null && containsKey(key(cell.x, cell.y));
     }
 
     public boolean hasCommonCells(CellSet otherSet)
     {
-        for (TextGrid.Cell cell : this) {
-            if (otherSet.contains(cell)) return true;
+        CellSet smaller = size <= otherSet.size ? this : otherSet;
+        CellSet larger = smaller == this ? otherSet : this;
+        for (long key : smaller.table) {
+            if (key != EMPTY && larger.containsKey(key)) return true;
         }
         return false;
     }
@@ -322,7 +525,7 @@ public class CellSet implements Iterable<TextGrid.Cell> {
         boolean finished = false;
         for (int y = 0; y < grid.getHeight() && !finished; y++) {
             for (int x = 0; x < grid.getWidth() && !finished; x++) {
-                cell = new TextGrid.Cell(x, y);
+                cell = TextGrid.Cell.at(x, y);
                 if (!grid.isBlank(cell)
                         && grid.isBlank(cell.getEast())
                         && grid.isBlank(cell.getWest())) {
@@ -340,15 +543,104 @@ public class CellSet implements Iterable<TextGrid.Cell> {
         return null;
     }
 
+    /**
+     * Returns the same cells as {@link #getFilledEquivalent(TextGrid)} in a
+     * bitmap of <code>width</code> by <code>height</code> cells, without
+     * drawing the set on a grid first. The bitmap must be large enough for
+     * the grid that getFilledEquivalent would draw on.
+     */
+    public CellBitmap getFilledBitmap(TextGrid textGrid, int width, int height)
+    {
+        int areaWidth = getMaxX() + 2;
+        int areaHeight = getMaxY() + 2;
+        if (areaWidth > width || areaHeight > height)
+            throw new IllegalArgumentException("A bitmap of " + width + "x" + height
+                    + " cannot hold a filled set of " + areaWidth + "x" + areaHeight);
+
+        CellBitmap bitmap = new CellBitmap(width, height);
+        long[] keys = getSortedKeys();
+        for (long key : keys) bitmap.add(xOf(key), yOf(key));
+        if (this.getType(textGrid) == CellSet.TYPE_OPEN) return bitmap;
+
+        //find a cell that has a blank both on the east and the west
+        for (long key : keys) {
+            int x = xOf(key);
+            int y = yOf(key);
+            if (x >= 1 && y >= 0 && !bitmap.contains(x - 1, y) && !bitmap.contains(x + 1, y)) {
+                fillBitmap(bitmap, x + 1, y, areaWidth, areaHeight);
+                break;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds the 4-connected area of cells around <code>x</code>,
+     * <code>y</code> that are not in the bitmap yet, within the top left
+     * <code>areaWidth</code> by <code>areaHeight</code> cells, one run of
+     * cells along a row at a time.
+     */
+    private static void fillBitmap(CellBitmap bitmap, int x, int y, int areaWidth, int areaHeight)
+    {
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = x;
+        stack[stackSize++] = y;
+
+        while (stackSize > 0) {
+            int row = stack[--stackSize];
+            int start = stack[--stackSize];
+            if (bitmap.contains(start, row)) continue;
+
+            int left = start;
+            while (left > 0 && !bitmap.contains(left - 1, row)) left--;
+            int right = start;
+            while (right < areaWidth - 1 && !bitmap.contains(right + 1, row)) right++;
+            bitmap.addRun(left, right, row);
+
+            //seed the runs of the rows above and below that touch this one
+            for (int neighbourRow = row - 1; neighbourRow <= row + 1; neighbourRow += 2) {
+                if (neighbourRow < 0 || neighbourRow >= areaHeight) continue;
+                boolean inRun = false;
+                for (int i = left; i <= right; i++) {
+                    boolean blank = !bitmap.contains(i, neighbourRow);
+                    if (blank && !inRun) {
+                        if (stackSize + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                        stack[stackSize++] = i;
+                        stack[stackSize++] = neighbourRow;
+                    }
+                    inRun = blank;
+                }
+            }
+        }
+    }
+
     public void subtractSet(CellSet set)
     {
         typeIsValid = false;
-        for (TextGrid.Cell cell : set) {
-            TextGrid.Cell thisCell = find(cell);
-            if (thisCell != null) remove(thisCell);
+        if (set == this) {
+            clear();
+            return;
+        }
+        for (long key : set.table) {
+            if (key != EMPTY) removeKey(key);
         }
     }
 
+    private void clear()
+    {
+        table = new long[INITIAL_CAPACITY];
+        Arrays.fill(table, EMPTY);
+        size = 0;
+        fingerprint = 0;
+        sortedKeys = null;
+        minX = Integer.MAX_VALUE;
+        maxX = 0;
+        minY = Integer.MAX_VALUE;
+        maxY = 0;
+        boundsAreValid = true;
+    }
+
     public int getWidth()
     {
         return getMaxX() - getMinX();
@@ -362,47 +654,34 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 
     public int getMaxX()
     {
-        int result = 0;
-        for (TextGrid.Cell cell : this) {
-            if (cell.x > result) result = cell.x;
-        }
-        return result;
+        validateBounds();
+        return maxX;
     }
 
     public int getMinX()
     {
-        int result = Integer.MAX_VALUE;
-        for (TextGrid.Cell cell : this) {
-            if (cell.x < result) result = cell.x;
-        }
-        return result;
+        validateBounds();
+        return minX;
     }
 
 
     public int getMaxY()
     {
-        int result = 0;
-        for (TextGrid.Cell cell : this) {
-            if (cell.y > result) result = cell.y;
-        }
-        return result;
+        validateBounds();
+        return maxY;
     }
 
     public int getMinY()
     {
-        int result = Integer.MAX_VALUE;
-        for (TextGrid.Cell cell : this) {
-            if (cell.y < result) result = cell.y;
-        }
-        return result;
+        validateBounds();
+        return minY;
     }
 
 
     public Object remove(TextGrid.Cell cell)
     {
         typeIsValid = false;
-        cell = find(cell);
-        if (cell != null) return internalSet.remove(cell);
+        if (cell != null && removeKey(key(cell.x, cell.y))) return Boolean.TRUE;
         else return null;
     }
 
@@ -414,28 +693,62 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 
         CellSet cells = (CellSet) o;
 
-        return internalSet != null ? internalSet.equals(cells.internalSet) : cells.internalSet == null;
-
+        if (size != cells.size || fingerprint != cells.fingerprint) return false;
+        for (long key : table) {
+            if (key != EMPTY && !cells.containsKey(key)) return false;
+        }
+        return true;
     }
 
+    /**
+     * The sum of the hash codes of the cells, as for any other set
+     */
     @Override
     public int hashCode()
     {
-        return internalSet != null ? internalSet.hashCode() : 0;
+        int result = 0;
+        for (long key : table) {
+            if (key != EMPTY) result += 31 * xOf(key) + yOf(key);
+        }
+        return result;
     }
 
+    /**
+     * An order independent 64-bit hash of the cells of the set, kept up to
+     * date as cells are added and removed. Equal sets have equal
+     * fingerprints; sets with different fingerprints are never equal.
+     */
+    public long getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * @return the first of each group of equal sets in <code>list</code>,
+     * in the order they appear
+     */
     public static ArrayList<CellSet> removeDuplicateSets(ArrayList<CellSet> list)
     {
         ArrayList<CellSet> uniqueSets = new ArrayList<CellSet>();
+        HashMap<Long, ArrayList<CellSet>> setsByFingerprint = new HashMap<Long, ArrayList<CellSet>>();
 
         for (CellSet set : list) {
+            ArrayList<CellSet> bucket = setsByFingerprint.get(set.fingerprint);
+            if (bucket == null) {
+                bucket = new ArrayList<CellSet>(1);
+                setsByFingerprint.put(set.fingerprint, bucket);
+            }
             boolean isOriginal = true;
-            for (CellSet uniqueSet : uniqueSets) {
+            for (CellSet uniqueSet : bucket) {
                 if (set.equals(uniqueSet)) {
                     isOriginal = false;
+                    break;
                 }
             }
-            if (isOriginal) uniqueSets.add(set);
+            if (isOriginal) {
+                bucket.add(set);
+                uniqueSets.add(set);
+            }
         }
         return uniqueSets;
     }
@@ -463,27 +776,97 @@ public class CellSet implements Iterable<TextGrid.Cell> {
      */
     public ArrayList<CellSet> breakIntoDistinctBoundaries()
     {
-        ArrayList<CellSet> result = new ArrayList<CellSet>();
-
-        //CellSet tempSet = copyCellSet(this);
-        //tempSet.translate( - this.getMinX() + 1, - this.getMinY() + 1);
-
-//		TextGrid boundaryGrid = new TextGrid(tempSet.getMaxX()+2, tempSet.getMaxY()+2);
-//		boundaryGrid.fillCellsWith(tempSet, '*');
-
-        TextGrid boundaryGrid = new TextGrid(getMaxX() + 2, getMaxY() + 2);
-        boundaryGrid.fillCellsWith(this, '*');
+        return breakIntoDistinctBoundariesScaledDownBy(1);
+    }
 
+    /**
+     * Finds the 4-connected components of the set (leaving out any cells
+     * with negative coordinates) and scales them down by
+     * <code>factor</code>, so that each cell of a component becomes the
+     * cell at (x / factor, y / factor).
+     *
+     * <p>The components are labeled in two passes over the runs of cells
+     * along the rows: the first joins each run with the runs it touches on
+     * the previous row using union-find, the second gathers the cells of
+     * each component.</p>
+     *
+     * @return the components, in the y-then-x order of their first cells
+     */
+    ArrayList<CellSet> breakIntoDistinctBoundariesScaledDownBy(int factor)
+    {
+        long[] keys = getSortedKeys();
+        int[] runY = new int[keys.length];
+        int[] runStart = new int[keys.length];
+        int[] runEnd = new int[keys.length];
+        int[] parent = new int[keys.length];
+        int runCount = 0;
+
+        //first pass: runs of cells along the rows, joined to the runs they
+        //touch on the previous row
+        for (long key : keys) {
+            int x = xOf(key);
+            int y = yOf(key);
+            if (x < 0 || y < 0) continue;
+            if (runCount > 0 && runY[runCount - 1] == y && runEnd[runCount - 1] == x - 1) {
+                runEnd[runCount - 1] = x;
+                continue;
+            }
+            runY[runCount] = y;
+            runStart[runCount] = x;
+            runEnd[runCount] = x;
+            parent[runCount] = runCount;
+            runCount++;
+        }
+        for (int run = 0, previousRow = 0; run < runCount; run++) {
+            //skip past the previous row runs that end before this one
+            while (previousRow < run
+                    && (runY[previousRow] < runY[run] - 1
+                    || (runY[previousRow] == runY[run] - 1 && runEnd[previousRow] < runStart[run]))) {
+                previousRow++;
+            }
+            for (int other = previousRow;
+                 other < run && runY[other] == runY[run] - 1 && runStart[other] <= runEnd[run];
+                 other++) {
+                union(parent, other, run);
+            }
+        }
 
-        for (TextGrid.Cell cell : this) {
-            if (boundaryGrid.isBlank(cell.x, cell.y)) continue;
-            CellSet boundarySet = boundaryGrid.fillContinuousArea(cell.x, cell.y, ' ');
-            //boundarySet.translate( this.getMinX() - 1, this.getMinY() - 1);
-            result.add(boundarySet);
+        //second pass: the cells of each component
+        ArrayList<CellSet> result = new ArrayList<CellSet>();
+        int[] componentOfRoot = new int[runCount];
+        Arrays.fill(componentOfRoot, -1);
+        for (int run = 0; run < runCount; run++) {
+            int root = find(parent, run);
+            if (componentOfRoot[root] == -1) {
+                componentOfRoot[root] = result.size();
+                result.add(new CellSet());
+            }
+            CellSet component = result.get(componentOfRoot[root]);
+            int y = runY[run] / factor;
+            for (int x = runStart[run] / factor; x <= runEnd[run] / factor; x++) {
+                component.add(x, y);
+            }
         }
         return result;
     }
 
+    private static int find(int[] parent, int i)
+    {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int i, int j)
+    {
+        int rootI = find(parent, i);
+        int rootJ = find(parent, j);
+        if (rootI < rootJ) parent[rootJ] = rootI;
+        else if (rootJ < rootI) parent[rootI] = rootJ;
+    }
+
 
     /**
      *
@@ -593,30 +976,30 @@ public class CellSet implements Iterable<TextGrid.Cell> {
 
     public CellSet makeScaledOneThirdEquivalent()
     {
-        TextGrid gridBig = this.makeIntoGrid();
-        gridBig.fillCellsWith(this, '*');
         if (VERBOSE_DEBUG) {
             System.out.println("---> making ScaledOneThirdEquivalent of:");
-            gridBig.printDebug(System.out);
+            makeIntoGrid().printDebug(System.out);
         }
 
-
-        TextGrid gridSmall = new TextGrid((getMaxX() + 2) / 3, (getMaxY() + 2) / 3);
-
-
-        for (int y = 0; y < gridBig.getHeight(); y++) {
-            for (int x = 0; x < gridBig.getWidth(); x++) {
-                TextGrid.Cell cell = new TextGrid.Cell(x, y);
-                if (!gridBig.isBlank(cell)) gridSmall.set(x / 3, y / 3, '*');
-            }
+        //the cells of the last column/row are left out when they would
+        //fall outside a (maxX + 2) / 3 by (maxY + 2) / 3 grid
+        int smallWidth = (getMaxX() + 2) / 3;
+        int smallHeight = (getMaxY() + 2) / 3;
+        CellSet result = new CellSet();
+        for (long key : table) {
+            if (key == EMPTY) continue;
+            int x = xOf(key);
+            int y = yOf(key);
+            if (x < 0 || y < 0 || x / 3 >= smallWidth || y / 3 >= smallHeight) continue;
+            result.add(x / 3, y / 3);
         }
 
         if (VERBOSE_DEBUG) {
             System.out.println("---> made into grid:");
-            gridSmall.printDebug(System.out);
+            result.printAsGrid(System.out);
         }
 
-        return gridSmall.getAllNonBlank();
+        return result;
     }
 
 }
@@ -0,0 +1,107 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p/>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p/>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p/>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ditaa.text;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The human color codes (like cRED) and the hex codes (like cE32) they
+ * stand for, kept in a table sorted by name so that a code can be looked
+ * up straight from the chars of a grid.
+ *
+ * @see TextGrid#replaceHumanColorCodes(ColorPalette)
+ */
+public class ColorPalette {
+
+    private static final HashMap<String, String> defaultColorCodes = new HashMap<String, String>();
+
+    static {
+        defaultColorCodes.put("GRE", "9D9");
+        defaultColorCodes.put("BLU", "55B");
+        defaultColorCodes.put("PNK", "FAA");
+        defaultColorCodes.put("RED", "E32");
+        defaultColorCodes.put("YEL", "FF3");
+        defaultColorCodes.put("BLK", "000");
+    }
+
+    public static final ColorPalette DEFAULT = new ColorPalette(defaultColorCodes);
+
+    /**
+     * The names packed by {@link #key(char, char, char)}, in ascending order
+     */
+    private final long[] names;
+    private final char[][] hexCodes;
+    private final Map<String, String> colorCodes;
+
+    /**
+     * @param colorCodes human color code names of three chars, mapped to
+     *                   three hex digits
+     */
+    public ColorPalette(Map<String, String> colorCodes)
+    {
+        this.colorCodes = new HashMap<String, String>(colorCodes);
+        names = new long[colorCodes.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : colorCodes.entrySet()) {
+            String name = entry.getKey();
+            String hexCode = entry.getValue();
+            if (name.length() != 3)
+                throw new IllegalArgumentException("Human color code names must be 3 characters long: " + name);
+            if (!hexCode.matches("[0-9A-F]{3}"))
+                throw new IllegalArgumentException("Invalid hex code for human color code " + name + ": " + hexCode);
+            names[i++] = key(name.charAt(0), name.charAt(1), name.charAt(2));
+        }
+        Arrays.sort(names);
+        hexCodes = new char[names.length][];
+        for (Map.Entry<String, String> entry : colorCodes.entrySet()) {
+            String name = entry.getKey();
+            int index = Arrays.binarySearch(names, key(name.charAt(0), name.charAt(1), name.charAt(2)));
+            hexCodes[index] = entry.getValue().toCharArray();
+        }
+    }
+
+    /**
+     * @return a palette with the color codes of this one and
+     * <code>colorCodes</code>, which take precedence
+     */
+    public ColorPalette with(Map<String, String> colorCodes)
+    {
+        if (colorCodes == null || colorCodes.isEmpty()) return this;
+        HashMap<String, String> merged = new HashMap<String, String>(this.colorCodes);
+        merged.putAll(colorCodes);
+        return new ColorPalette(merged);
+    }
+
+    private static long key(char c0, char c1, char c2)
+    {
+        return ((long) c0 << 32) | ((long) c1 << 16) | c2;
+    }
+
+    /**
+     * @return the hex digits of the color named by the three chars from
+     * <code>offset</code>, or null if there is no such color
+     */
+    char[] lookUp(char[] chars, int offset)
+    {
+        int index = Arrays.binarySearch(names, key(chars[offset], chars[offset + 1], chars[offset + 2]));
+        return index < 0 ? null : hexCodes[index];
+    }
+}
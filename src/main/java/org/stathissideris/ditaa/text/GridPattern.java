@@ -19,6 +19,7 @@
 package org.stathissideris.ditaa.text;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.regex.Pattern;
 
 /**
@@ -49,6 +50,12 @@ import java.util.regex.Pattern;
  * <p/>
  * +, \, / and the space are literal (as is any other character)
  * <p/>
+ * Each row is turned into a regular expression, but since the tests
+ * are run for every cell of the grid, the patterns are also compiled
+ * into one character class per position: a bit mask over the categories
+ * of characters that the syntax above can tell apart (see
+ * {@link #isMatchedBy(TextGrid, int, int)}).
+ * <p/>
  * <p/>
  * Entry points
  * <p/>
@@ -77,6 +84,64 @@ public class GridPattern extends TextGrid {
 
     private static final boolean DEBUG = false;
 
+    //character categories
+    private static final int DASH = 1;
+    private static final int EQUALS = 1 << 1;
+    private static final int SLASH = 1 << 2;
+    private static final int BACKSLASH = 1 << 3;
+    private static final int PLUS = 1 << 4;
+    private static final int PIPE = 1 << 5;
+    private static final int COLON = 1 << 6;
+    private static final int STAR = 1 << 7;
+    private static final int OTHER = 1 << 8;
+    //the ones below are the characters that need care to behave like regular expressions
+    private static final int LINE_TERMINATOR = 1 << 9; // not matched by .
+    private static final int HIGH_SURROGATE = 1 << 10; // followed by a low one they are a single code point
+    private static final int LOW_SURROGATE = 1 << 11;
+
+    private static final int ANY = (1 << 12) - 1;
+    private static final int ANY_BUT_LINE_TERMINATOR = ANY & ~LINE_TERMINATOR;
+    private static final int BOUNDARY = DASH | EQUALS | SLASH | BACKSLASH | PLUS | PIPE | COLON;
+
+    private static final int[] ENTRY_POINTS = {
+            0,
+            BACKSLASH,
+            PIPE | COLON | PLUS | SLASH | BACKSLASH,
+            SLASH,
+            DASH | EQUALS | PLUS | SLASH | BACKSLASH,
+            BACKSLASH,
+            PIPE | COLON | PLUS | SLASH | BACKSLASH,
+            SLASH,
+            DASH | EQUALS | PLUS | SLASH | BACKSLASH
+    };
+
+    private static final int[] ASCII_CATEGORIES = new int[128];
+
+    static {
+        for (char c = 0; c < ASCII_CATEGORIES.length; c++) ASCII_CATEGORIES[c] = OTHER;
+        ASCII_CATEGORIES['-'] = DASH;
+        ASCII_CATEGORIES['='] = EQUALS;
+        ASCII_CATEGORIES['/'] = SLASH;
+        ASCII_CATEGORIES['\\'] = BACKSLASH;
+        ASCII_CATEGORIES['+'] = PLUS;
+        ASCII_CATEGORIES['|'] = PIPE;
+        ASCII_CATEGORIES[':'] = COLON;
+        ASCII_CATEGORIES['*'] = STAR;
+        ASCII_CATEGORIES['\n'] = LINE_TERMINATOR;
+        ASCII_CATEGORIES['\r'] = LINE_TERMINATOR;
+    }
+
+    /**
+     * The categories accepted at each of the 9 positions, row by row
+     */
+    private final int[] masks = new int[9];
+
+    /**
+     * Characters accepted at each position in addition to the mask,
+     * for literals that don't have a category of their own (-1 for none)
+     */
+    private final int[] literals = new int[9];
+
     public GridPattern(String row1, String row2, String row3)
     {
         super(Math.max(Math.max(row1.length(), row2.length()), row3.length()), 3);
@@ -86,8 +151,15 @@ public class GridPattern extends TextGrid {
         writeStringTo(0, 1, row2);
         writeStringTo(0, 2, row3);
         prepareRegExps();
+        prepareMasks();
     }
 
+    /**
+     * Matches the rows of a 3x3 <code>grid</code> against the regular
+     * expressions of the pattern. This gives the same results as
+     * {@link #isMatchedBy(TextGrid, int, int)} for the centre of
+     * <code>grid</code>, but it is a lot slower.
+     */
     public boolean isMatchedBy(TextGrid grid)
     {
         for (int i = 0; i < grid.getHeight(); i++) {
@@ -102,13 +174,126 @@ public class GridPattern extends TextGrid {
         return true;
     }
 
+    /**
+     * Tests whether the 3x3 neighbourhood of the cell at <code>x</code>,
+     * <code>y</code> of <code>grid</code> matches the pattern. Cells
+     * outside the grid count as 0 chars.
+     */
+    public boolean isMatchedBy(TextGrid grid, int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= grid.getWidth() || y >= grid.getHeight()) {
+            //the neighbourhood is not all within the padding, go the slow way
+            for (int i = 0; i < 9; i++) {
+                int row = i / 3;
+                int column = i % 3;
+                char c = grid.get(x + column - 1, y + row - 1);
+                char previous = column == 0 ? 0 : grid.get(x + column - 2, y + row - 1);
+                if (!matches(i, c, previous)) return false;
+            }
+            return true;
+        }
+
+        //most cells are turned down by the centre alone, so try it first
+        int centre = grid.index(x, y);
+        if (!matches(4, grid.getAt(centre), grid.getAt(centre - 1))) return false;
+
+        int stride = grid.getStride();
+        int index = centre - stride - 1;
+        for (int i = 0; i < 9; i += 3) {
+            char c0 = grid.getAt(index);
+            char c1 = grid.getAt(index + 1);
+            char c2 = grid.getAt(index + 2);
+            if (!matches(i, c0, (char) 0)
+                    || !matches(i + 1, c1, c0)
+                    || !matches(i + 2, c2, c1)) return false;
+            index += stride;
+        }
+        return true;
+    }
+
+    /**
+     * @param previous the character to the west of <code>c</code> in the
+     *                 same row of the pattern, or 0 at the start of the row
+     */
+    private boolean matches(int position, char c, char previous)
+    {
+        int category = categoryOf(c);
+        if ((masks[position] & category) == 0 && c != literals[position]) return false;
+        //a surrogate pair is a single character to the regular expressions,
+        //so the row has too few characters to match
+        return (category & LOW_SURROGATE) == 0 || !Character.isHighSurrogate(previous);
+    }
+
+    private static int categoryOf(char c)
+    {
+        if (c < ASCII_CATEGORIES.length) return ASCII_CATEGORIES[c];
+        if (c == '\u0085' || c == '\u2028' || c == '\u2029') return LINE_TERMINATOR;
+        if (Character.isHighSurrogate(c)) return HIGH_SURROGATE;
+        if (Character.isLowSurrogate(c)) return LOW_SURROGATE;
+        return OTHER;
+    }
+
+    /**
+     * Compiles the pattern into <code>masks</code> and <code>literals</code>,
+     * reading it the same way as {@link #makeRegExp(String)}.
+     */
+    private void prepareMasks()
+    {
+        Arrays.fill(literals, -1);
+        for (int y = 0; y < getHeight(); y++) {
+            String pattern = getRow(y).toString();
+            int tokensHandled = 0;
+            for (int i = 0; i < pattern.length() && tokensHandled < 3; i++) {
+                int position = y * 3 + tokensHandled;
+                char c = pattern.charAt(i);
+                if (c == '[') {
+                    masks[position] = ANY & ~(PIPE | COLON);
+                } else if (c == '|') {
+                    masks[position] = PIPE | COLON;
+                } else if (c == '-') {
+                    masks[position] = DASH | EQUALS;
+                } else if (c == '!') {
+                    masks[position] = ANY & ~BOUNDARY;
+                } else if (c == 'b') {
+                    masks[position] = BOUNDARY;
+                } else if (c == '^') {
+                    masks[position] = SLASH | BACKSLASH | PLUS | PIPE | COLON;
+                } else if (c == '(') {
+                    masks[position] = DASH | EQUALS | SLASH | BACKSLASH | PLUS;
+                } else if (c == '~' || c == '.') {
+                    masks[position] = ANY_BUT_LINE_TERMINATOR;
+                } else if (c == 's') {
+                    masks[position] = DASH | EQUALS | PLUS | PIPE | COLON;
+                } else if (c == 'S') {
+                    masks[position] = SLASH | BACKSLASH;
+                } else if (c >= '1' && c <= '8') {
+                    masks[position] = ENTRY_POINTS[c - '0'];
+                } else if (c == '%') {
+                    if (i + 1 >= pattern.length()) {
+                        throw new RuntimeException("Invalid pattern, found % at the end");
+                    }
+                    c = pattern.charAt(++i);
+                    if (c < '1' || c > '8') {
+                        throw new RuntimeException("Invalid pattern, found % followed by " + c);
+                    }
+                    masks[position] = ANY & ~ENTRY_POINTS[c - '0'];
+                } else {
+                    int category = categoryOf(c);
+                    if (category == OTHER || category == LINE_TERMINATOR) literals[position] = c;
+                    else masks[position] = category;
+                }
+                tokensHandled++;
+            }
+        }
+    }
+
     private void prepareRegExps()
     {
         regExps.clear();
         if (DEBUG)
             System.out.println("Trying to match:");
-        for (StringBuilder stringBuilder : getRows()) {
-            String row = stringBuilder.toString();
+        for (int y = 0; y < getHeight(); y++) {
+            String row = getRow(y).toString();
             regExps.add(Pattern.compile(makeRegExp(row)));
             if (DEBUG)
                 System.out.println(row + " becomes " + makeRegExp(row));
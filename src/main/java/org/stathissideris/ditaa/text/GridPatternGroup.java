@@ -33,6 +33,18 @@ public class GridPatternGroup extends ArrayList<GridPattern> {
         return false;
     }
 
+    /**
+     * Tests the neighbourhood of the cell at <code>x</code>, <code>y</code>
+     * in place, see {@link GridPattern#isMatchedBy(TextGrid, int, int)}
+     */
+    public boolean isAnyMatchedBy(TextGrid grid, int x, int y)
+    {
+        for (int i = 0, size = size(); i < size; i++) {
+            if (get(i).isMatchedBy(grid, x, y)) return true;
+        }
+        return false;
+    }
+
     //TODO: define criteria for on-line type?
 
     public static final GridPatternGroup cornerCriteria = new GridPatternGroup();
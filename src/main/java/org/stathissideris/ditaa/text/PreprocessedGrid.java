@@ -0,0 +1,68 @@
+/**
+ * ditaa - Diagrams Through Ascii Art
+ * <p/>
+ * Copyright (C) 2004-2011 Efstathios Sideris
+ * <p/>
+ * ditaa is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * <p/>
+ * ditaa is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with ditaa.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.stathissideris.ditaa.text;
+
+import org.stathissideris.ditaa.text.TextGrid.Cell;
+import org.stathissideris.ditaa.text.TextGrid.CellColorPair;
+import org.stathissideris.ditaa.text.TextGrid.CellTagPair;
+
+import java.util.ArrayList;
+
+/**
+ * What a Diagram needs to know about a grid before it starts looking for
+ * shapes, as found by {@link TextGrid#preprocess()}.
+ */
+public class PreprocessedGrid {
+
+    /**
+     * The grid with the type and point markers on lines replaced by lines
+     */
+    public final TextGrid workGrid;
+
+    /**
+     * The grid with everything but the text blanked out
+     */
+    public final TextGrid textGrid;
+
+    /**
+     * The boundaries of the work grid
+     */
+    public final CellSet boundaries;
+
+    /**
+     * The arrowheads of the work grid
+     */
+    public final ArrayList<Cell> arrowheads;
+
+    public final CellSet pointMarkers;
+    public final ArrayList<CellColorPair> colorCodes;
+    public final ArrayList<CellTagPair> markupTags;
+
+    PreprocessedGrid(TextGrid workGrid, TextGrid textGrid, CellSet boundaries, ArrayList<Cell> arrowheads,
+                     CellSet pointMarkers, ArrayList<CellColorPair> colorCodes, ArrayList<CellTagPair> markupTags)
+    {
+        this.workGrid = workGrid;
+        this.textGrid = textGrid;
+        this.boundaries = boundaries;
+        this.arrowheads = arrowheads;
+        this.pointMarkers = pointMarkers;
+        this.colorCodes = colorCodes;
+        this.markupTags = markupTags;
+    }
+}
@@ -18,15 +18,22 @@
  */
 package org.stathissideris.ditaa.text;
 
-import org.stathissideris.ditaa.core.FileUtils;
 import org.stathissideris.ditaa.core.ProcessingOptions;
+import org.stathissideris.ditaa.core.TaskRunner;
 
 import java.awt.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 
 /**
@@ -37,7 +44,66 @@ public class TextGrid {
 
     private static final boolean DEBUG = false;
 
-    private ArrayList<StringBuilder> rows;
+    /**
+     * Width of the ring of 0 chars kept around the cells in the backing
+     * array, so that looking at the neighbours of an edge cell never
+     * leaves the array.
+     */
+    private static final int PADDING = 1;
+
+    /**
+     * Fewest rows worth scanning on a thread of their own
+     */
+    private static final int MIN_STRIPE_HEIGHT = 64;
+
+    /**
+     * The cells of the grid, row after row, including the padding
+     * (see {@link #index(int, int)}).
+     */
+    private char[] cells;
+    private int width;
+    private int height;
+    private int stride;
+
+    /*
+     * Bits of the type codes kept in {@link #types}, one for each pattern
+     * group that the cell predicates match against.
+     */
+    private static final int CORNER1 = 1;
+    private static final int CORNER2 = 1 << 1;
+    private static final int CORNER3 = 1 << 2;
+    private static final int CORNER4 = 1 << 3;
+    private static final int NORMAL_CORNER = 1 << 4;
+    private static final int ROUND_CORNER = 1 << 5;
+    private static final int CROSS = 1 << 6;
+    private static final int K = 1 << 7;
+    private static final int INVERSE_K = 1 << 8;
+    private static final int T = 1 << 9;
+    private static final int INVERSE_T = 1 << 10;
+    private static final int INTERSECTION = 1 << 11;
+    private static final int STUB = 1 << 12;
+    private static final int LINES_END = 1 << 13;
+    private static final int CROSS_ON_LINE = 1 << 14;
+    private static final int HORIZONTAL_CROSS_ON_LINE = 1 << 15;
+    private static final int VERTICAL_CROSS_ON_LINE = 1 << 16;
+    private static final int STAR_ON_LINE = 1 << 17;
+    private static final int LONE_DIAGONAL = 1 << 18;
+    /** Set on every computed type code, so that 0 means "not classified yet" */
+    private static final int CLASSIFIED = 1 << 31;
+
+    /**
+     * Type code of each cell, row after row without padding, or 0 if the
+     * cell has not been classified since it (or one of its neighbours)
+     * last changed. Allocated on the first query.
+     */
+    private int[] types;
+
+    /**
+     * The color codes and markup tags of each row, lexed on demand (see
+     * {@link #getRowTokens(int)}), or null if the row has not been lexed
+     * since it last changed.
+     */
+    private RowTokens[] rowTokens;
 
     private static char[] boundaries = {'/', '\\', '|', '-', '*', '=', ':'};
     private static char[] horizontalLines = {'-', '='};
@@ -55,18 +121,6 @@ public class TextGrid {
     private static char[] entryPoints8 = {'-', '=', '+', '\\', '/'};
 
 
-    private static HashMap<String, String> humanColorCodes = new HashMap<String, String>();
-
-    static {
-        humanColorCodes.put("GRE", "9D9");
-        humanColorCodes.put("BLU", "55B");
-        humanColorCodes.put("PNK", "FAA");
-        humanColorCodes.put("RED", "E32");
-        humanColorCodes.put("YEL", "FF3");
-        humanColorCodes.put("BLK", "000");
-
-    }
-
     private static HashSet<String> markupTags =
             new HashSet<String>();
 
@@ -87,15 +141,16 @@ public class TextGrid {
 
     public TextGrid()
     {
-        rows = new ArrayList<StringBuilder>();
+        this(0, 0);
     }
 
     public TextGrid(int width, int height)
     {
-        String space = StringUtils.repeatString(" ", width);
-        rows = new ArrayList<StringBuilder>();
-        for (int i = 0; i < height; i++)
-            rows.add(new StringBuilder(space));
+        allocate(width, height);
+        for (int y = 0; y < height; y++) {
+            int start = index(0, y);
+            Arrays.fill(cells, start, start + width, ' ');
+        }
     }
 
     public static TextGrid makeSameSizeAs(TextGrid grid)
@@ -106,42 +161,97 @@ public class TextGrid {
 
     public TextGrid(TextGrid otherGrid)
     {
-        rows = new ArrayList<StringBuilder>();
-        for (StringBuilder row : otherGrid.getRows()) {
-            rows.add(new StringBuilder(row));
-        }
+        width = otherGrid.width;
+        height = otherGrid.height;
+        stride = otherGrid.stride;
+        cells = new char[otherGrid.cells.length];
+        System.arraycopy(otherGrid.cells, 0, cells, 0, cells.length);
+        //the tokens of a row never change once lexed, so they can be shared
+        if (otherGrid.rowTokens != null) rowTokens = otherGrid.rowTokens.clone();
+    }
+
+    private void allocate(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        stride = width + 2 * PADDING;
+        cells = new char[stride * (height + 2 * PADDING)];
+        types = null;
+        rowTokens = null;
+    }
+
+    /**
+     * Returns the position of the cell at <code>x</code>, <code>y</code>
+     * in the backing array. The cells next to it are at +/-1 (east/west)
+     * and +/-stride (south/north).
+     */
+    int index(int x, int y)
+    {
+        return (y + PADDING) * stride + x + PADDING;
+    }
+
+    int getStride()
+    {
+        return stride;
+    }
+
+    /**
+     * Unchecked access to the backing array, see {@link #index(int, int)}
+     */
+    char getAt(int index)
+    {
+        return cells[index];
     }
 
     //	duplicated code due to lots of hits to this function
     public char get(int x, int y)
     {
-        if (x > getWidth() - 1
-                || y > getHeight() - 1
+        if (x >= width
+                || y >= height
                 || x < 0
                 || y < 0) return 0;
-        return rows.get(y).charAt(x);
+        return cells[(y + PADDING) * stride + x + PADDING];
     }
 
     //duplicated code due to lots of hits to this function
     public char get(Cell cell)
     {
-        if (cell.x > getWidth() - 1
-                || cell.y > getHeight() - 1
-                || cell.x < 0
-                || cell.y < 0) return 0;
-        return rows.get(cell.y).charAt(cell.x);
+        int x = cell.x;
+        int y = cell.y;
+        if (x >= width
+                || y >= height
+                || x < 0
+                || y < 0) return 0;
+        return cells[(y + PADDING) * stride + x + PADDING];
     }
 
-    public StringBuilder getRow(int y)
+    /**
+     * Returns a view of row <code>y</code>. The view is backed by
+     * the grid, so it reflects any later changes to it.
+     */
+    public CharSequence getRow(int y)
     {
-        return rows.get(y);
+        if (y < 0 || y >= height) throw new IndexOutOfBoundsException("Row " + y + " is out of bounds");
+        return CharBuffer.wrap(cells, index(0, y), width).slice();
     }
 
+    /**
+     * Cells of the sub-grid that fall outside this grid are set to 0,
+     * which is what {@link #get(int, int)} returns for them.
+     */
     public TextGrid getSubGrid(int x, int y, int width, int height)
     {
         TextGrid grid = new TextGrid(width, height);
+        boolean columnsInside = x >= 0 && x + width <= this.width;
         for (int i = 0; i < height; i++) {
-            grid.setRow(i, new StringBuilder(getRow(y + i).subSequence(x, x + width)));
+            int yi = y + i;
+            if (columnsInside && yi >= 0 && yi < this.height) {
+                System.arraycopy(cells, index(x, yi), grid.cells, grid.index(0, i), width);
+            } else {
+                for (int j = 0; j < width; j++) {
+                    grid.cells[grid.index(j, i)] = get(x + j, yi);
+                }
+            }
         }
         return grid;
     }
@@ -155,22 +265,24 @@ public class TextGrid {
     {
         int x = cell.x;
         int y = cell.y;
-        if (x > getWidth() - 1
-                || y > getHeight() - 1
+        if (x >= width
+                || y >= height
                 || x < 0
                 || y < 0) return null;
-        return rows.get(y).substring(x, x + length);
+        return new String(cells, index(x, y), Math.min(length, width - x));
     }
 
     public void writeStringTo(int x, int y, String str)
     {
-        writeStringTo(new Cell(x, y), str);
+        writeStringTo(Cell.at(x, y), str);
     }
 
     public void writeStringTo(Cell cell, String str)
     {
         if (isOutOfBounds(cell)) return;
-        rows.get(cell.y).replace(cell.x, cell.x + str.length(), str);
+        int length = Math.min(str.length(), width - cell.x);
+        str.getChars(0, length, cells, index(cell.x, cell.y));
+        cellsChanged(cell.x, cell.y, cell.x + length - 1, cell.y);
     }
 
     public void set(Cell cell, char c)
@@ -180,26 +292,32 @@ public class TextGrid {
 
     public void set(int x, int y, char c)
     {
-        if (x > getWidth() - 1 || y > getHeight() - 1) return;
-        rows.get(y).setCharAt(x, c);
+        if (x >= width || y >= height || x < 0 || y < 0) return;
+        int index = (y + PADDING) * stride + x + PADDING;
+        if (cells[index] == c) return;
+        cells[index] = c;
+        cellsChanged(x, y, x, y);
     }
 
-    public void setRow(int y, StringBuilder row)
+    public void setRow(int y, CharSequence row)
     {
-        if (y > getHeight() || row.length() != getWidth())
+        if (y < 0 || y >= height || row.length() != width)
             throw new IllegalArgumentException("setRow out of bounds or string wrong size");
-        rows.set(y, row);
+        int start = index(0, y);
+        for (int x = 0; x < width; x++) {
+            cells[start + x] = row.charAt(x);
+        }
+        cellsChanged(0, y, width - 1, y);
     }
 
     public int getWidth()
     {
-        if (rows.size() == 0) return 0; //empty buffer
-        return rows.get(0).length();
+        return width;
     }
 
     public int getHeight()
     {
-        return rows.size();
+        return height;
     }
 
     public void printDebug(PrintStream out)
@@ -211,34 +329,28 @@ public class TextGrid {
 
     public void printDebug(PrintWriter out)
     {
-        Iterator<StringBuilder> it = rows.iterator();
-        int i = 0;
         out.println(
                 "    "
                         + StringUtils.repeatString("0123456789", (int) Math.floor(getWidth() / 10) + 1));
-        while (it.hasNext()) {
-            String row = it.next().toString();
+        for (int i = 0; i < height; i++) {
+            String row = getRow(i).toString();
             String index = Integer.toString(i);
             if (i < 10) index = " " + index;
             out.println(index + " (" + row + ")");
-            i++;
         }
     }
 
     public String getDebugString()
     {
         StringBuilder buffer = new StringBuilder();
-        Iterator<StringBuilder> it = rows.iterator();
-        int i = 0;
         buffer.append("    ").append(StringUtils.repeatString("0123456789", (int) Math.floor(getWidth() / 10) + 1)).append("\n");
-        while (it.hasNext()) {
-            String row = it.next().toString();
+        for (int i = 0; i < height; i++) {
+            String row = getRow(i).toString();
             String index = Integer.toString(i);
             if (i < 10) index = " " + index;
             row = row.replaceAll("\n", "\\\\n");
             row = row.replaceAll("\r", "\\\\r");
             buffer.append(index).append(" (").append(row).append(")\n");
-            i++;
         }
         return buffer.toString();
     }
@@ -256,24 +368,27 @@ public class TextGrid {
      */
     public void replaceTypeOnLine()
     {
-        int width = getWidth();
-        int height = getHeight();
         for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width; xi++) {
-                char c = get(xi, yi);
-                if (Character.isLetterOrDigit(c)) {
-                    boolean isOnHorizontalLine = isOnHorizontalLine(xi, yi);
-                    boolean isOnVerticalLine = isOnVerticalLine(xi, yi);
-                    if (isOnHorizontalLine && isOnVerticalLine) {
-                        set(xi, yi, '+');
-                        if (DEBUG) System.out.println("replaced type on line '" + c + "' with +");
-                    } else if (isOnHorizontalLine) {
-                        set(xi, yi, '-');
-                        if (DEBUG) System.out.println("replaced type on line '" + c + "' with -");
-                    } else if (isOnVerticalLine) {
-                        set(xi, yi, '|');
-                        if (DEBUG) System.out.println("replaced type on line '" + c + "' with |");
-                    }
+            replaceTypeOnLine(yi);
+        }
+    }
+
+    private void replaceTypeOnLine(int yi)
+    {
+        for (int xi = 0; xi < width; xi++) {
+            char c = get(xi, yi);
+            if (Character.isLetterOrDigit(c)) {
+                boolean isOnHorizontalLine = isOnHorizontalLine(xi, yi);
+                boolean isOnVerticalLine = isOnVerticalLine(xi, yi);
+                if (isOnHorizontalLine && isOnVerticalLine) {
+                    set(xi, yi, '+');
+                    if (DEBUG) System.out.println("replaced type on line '" + c + "' with +");
+                } else if (isOnHorizontalLine) {
+                    set(xi, yi, '-');
+                    if (DEBUG) System.out.println("replaced type on line '" + c + "' with -");
+                } else if (isOnVerticalLine) {
+                    set(xi, yi, '|');
+                    if (DEBUG) System.out.println("replaced type on line '" + c + "' with |");
                 }
             }
         }
@@ -281,37 +396,39 @@ public class TextGrid {
 
     public void replacePointMarkersOnLine()
     {
-        int width = getWidth();
-        int height = getHeight();
         for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width; xi++) {
-                char c = get(xi, yi);
-                Cell cell = new Cell(xi, yi);
-                if (StringUtils.isOneOf(c, pointMarkers)
-                        && isStarOnLine(cell)) {
-
-                    boolean isOnHorizontalLine = false;
-                    if (StringUtils.isOneOf(get(cell.getEast()), horizontalLines))
-                        isOnHorizontalLine = true;
-                    if (StringUtils.isOneOf(get(cell.getWest()), horizontalLines))
-                        isOnHorizontalLine = true;
-
-                    boolean isOnVerticalLine = false;
-                    if (StringUtils.isOneOf(get(cell.getNorth()), verticalLines))
-                        isOnVerticalLine = true;
-                    if (StringUtils.isOneOf(get(cell.getSouth()), verticalLines))
-                        isOnVerticalLine = true;
-
-                    if (isOnHorizontalLine && isOnVerticalLine) {
-                        set(xi, yi, '+');
-                        if (DEBUG) System.out.println("replaced marker on line '" + c + "' with +");
-                    } else if (isOnHorizontalLine) {
-                        set(xi, yi, '-');
-                        if (DEBUG) System.out.println("replaced marker on line '" + c + "' with -");
-                    } else if (isOnVerticalLine) {
-                        set(xi, yi, '|');
-                        if (DEBUG) System.out.println("replaced marker on line '" + c + "' with |");
-                    }
+            replacePointMarkersOnLine(yi);
+        }
+    }
+
+    private void replacePointMarkersOnLine(int yi)
+    {
+        for (int xi = 0; xi < width; xi++) {
+            char c = get(xi, yi);
+            if (StringUtils.isOneOf(c, pointMarkers)
+                    && hasType(xi, yi, STAR_ON_LINE)) {
+
+                boolean isOnHorizontalLine = false;
+                if (StringUtils.isOneOf(get(xi + 1, yi), horizontalLines))
+                    isOnHorizontalLine = true;
+                if (StringUtils.isOneOf(get(xi - 1, yi), horizontalLines))
+                    isOnHorizontalLine = true;
+
+                boolean isOnVerticalLine = false;
+                if (StringUtils.isOneOf(get(xi, yi - 1), verticalLines))
+                    isOnVerticalLine = true;
+                if (StringUtils.isOneOf(get(xi, yi + 1), verticalLines))
+                    isOnVerticalLine = true;
+
+                if (isOnHorizontalLine && isOnVerticalLine) {
+                    set(xi, yi, '+');
+                    if (DEBUG) System.out.println("replaced marker on line '" + c + "' with +");
+                } else if (isOnHorizontalLine) {
+                    set(xi, yi, '-');
+                    if (DEBUG) System.out.println("replaced marker on line '" + c + "' with -");
+                } else if (isOnVerticalLine) {
+                    set(xi, yi, '|');
+                    if (DEBUG) System.out.println("replaced marker on line '" + c + "' with |");
                 }
             }
         }
@@ -319,36 +436,53 @@ public class TextGrid {
 
     public CellSet getPointMarkersOnLine()
     {
-        CellSet result = new CellSet();
-        int width = getWidth();
-        int height = getHeight();
-        for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width; xi++) {
-                char c = get(xi, yi);
-                if (StringUtils.isOneOf(c, pointMarkers)
-                        && isStarOnLine(new Cell(xi, yi))) {
-                    result.add(new Cell(xi, yi));
-                }
+        return getPointMarkersOnLine(TaskRunner.SEQUENTIAL);
+    }
+
+    public CellSet getPointMarkersOnLine(TaskRunner tasks)
+    {
+        return toCellSet(scanRows(tasks, new RowScan() {
+            public void scan(int y, List<Cell> result)
+            {
+                addPointMarkersOnLine(y, result);
+            }
+        }));
+    }
+
+    private void addPointMarkersOnLine(int yi, List<Cell> result)
+    {
+        for (int xi = 0; xi < width; xi++) {
+            char c = get(xi, yi);
+            if (StringUtils.isOneOf(c, pointMarkers)
+                    && hasType(xi, yi, STAR_ON_LINE)) {
+                result.add(Cell.at(xi, yi));
             }
         }
-        return result;
     }
 
 
     public void replaceHumanColorCodes()
+    {
+        replaceHumanColorCodes(ColorPalette.DEFAULT);
+    }
+
+    /**
+     * Replaces the human color codes of <code>palette</code> (like cRED)
+     * with the hex codes they stand for (like cE32), in one pass over the
+     * grid.
+     */
+    public void replaceHumanColorCodes(ColorPalette palette)
     {
         int height = getHeight();
         for (int y = 0; y < height; y++) {
-            String row = rows.get(y).toString();
-            for (String humanCode : humanColorCodes.keySet()) {
-                String hexCode = humanColorCodes.get(humanCode);
-                if (hexCode != null) {
-                    humanCode = "c" + humanCode;
-                    hexCode = "c" + hexCode;
-                    row = row.replaceAll(humanCode, hexCode);
-                    rows.set(y, new StringBuilder(row)); //TODO: this is not the most efficient way to do this
-                    row = rows.get(y).toString();
-                }
+            int start = index(0, y);
+            for (int x = 0; x < width - 3; x++) {
+                if (cells[start + x] != 'c') continue;
+                char[] hexCode = palette.lookUp(cells, start + x + 1);
+                if (hexCode == null) continue;
+                System.arraycopy(hexCode, 0, cells, start + x + 1, 3);
+                cellsChanged(x + 1, y, x + 3, y);
+                x += 3;
             }
         }
     }
@@ -359,8 +493,7 @@ public class TextGrid {
         int height = getHeight();
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
-                Cell cell = new Cell(x, y);
-                if (isBlank(cell)) return true;
+                if (get(x, y) == ' ') return true;
             }
         }
         return false;
@@ -369,44 +502,111 @@ public class TextGrid {
 
     public CellSet getAllNonBlank()
     {
-        CellSet set = new CellSet();
-        int width = getWidth();
-        int height = getHeight();
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Cell cell = new Cell(x, y);
-                if (!isBlank(cell)) set.add(cell);
+        return getAllNonBlank(TaskRunner.SEQUENTIAL);
+    }
+
+    public CellSet getAllNonBlank(TaskRunner tasks)
+    {
+        return toCellSet(scanRows(tasks, new RowScan() {
+            public void scan(int y, List<Cell> result)
+            {
+                for (int x = 0; x < width; x++) {
+                    Cell cell = Cell.at(x, y);
+                    if (!isBlank(cell)) result.add(cell);
+                }
             }
-        }
-        return set;
+        }));
     }
 
     public CellSet getAllBoundaries()
     {
-        CellSet set = new CellSet();
-        int width = getWidth();
-        int height = getHeight();
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Cell cell = new Cell(x, y);
-                if (isBoundary(cell)) set.add(cell);
+        return getAllBoundaries(TaskRunner.SEQUENTIAL);
+    }
+
+    public CellSet getAllBoundaries(TaskRunner tasks)
+    {
+        return toCellSet(scanRows(tasks, new RowScan() {
+            public void scan(int y, List<Cell> result)
+            {
+                addBoundaries(y, result);
             }
+        }));
+    }
+
+    private void addBoundaries(int y, List<Cell> result)
+    {
+        for (int x = 0; x < width; x++) {
+            Cell cell = Cell.at(x, y);
+            if (isBoundary(cell)) result.add(cell);
         }
-        return set;
     }
 
 
     public CellSet getAllBlanksBetweenCharacters()
     {
-        CellSet set = new CellSet();
-        int width = getWidth();
-        int height = getHeight();
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Cell cell = new Cell(x, y);
-                if (isBlankBetweenCharacters(cell)) set.add(cell);
+        return getAllBlanksBetweenCharacters(TaskRunner.SEQUENTIAL);
+    }
+
+    public CellSet getAllBlanksBetweenCharacters(TaskRunner tasks)
+    {
+        return toCellSet(scanRows(tasks, new RowScan() {
+            public void scan(int y, List<Cell> result)
+            {
+                for (int x = 0; x < width; x++) {
+                    Cell cell = Cell.at(x, y);
+                    if (isBlankBetweenCharacters(cell)) result.add(cell);
+                }
             }
+        }));
+    }
+
+    /**
+     * Looks for cells in one row, see {@link #scanRows(TaskRunner, RowScan)}
+     */
+    private interface RowScan {
+        void scan(int y, List<Cell> result);
+    }
+
+    /**
+     * Runs <code>scan</code> over all the rows and returns the cells it
+     * found, row after row. With a parallel runner the rows of a large
+     * grid are split in stripes that are scanned at the same time. A scan
+     * only reads the grid, so the row above and below each stripe need
+     * not be copied; they are read where they are.
+     */
+    private List<Cell> scanRows(TaskRunner tasks, final RowScan scan)
+    {
+        int stripeCount = Math.min(tasks.getParallelism() * 4, height / MIN_STRIPE_HEIGHT);
+        if (stripeCount < 2) {
+            ArrayList<Cell> result = new ArrayList<Cell>();
+            for (int y = 0; y < height; y++) scan.scan(y, result);
+            return result;
         }
+
+        ArrayList<Callable<ArrayList<Cell>>> stripes = new ArrayList<Callable<ArrayList<Cell>>>();
+        for (int i = 0; i < stripeCount; i++) {
+            final int from = height * i / stripeCount;
+            final int to = height * (i + 1) / stripeCount;
+            stripes.add(new Callable<ArrayList<Cell>>() {
+                public ArrayList<Cell> call()
+                {
+                    ArrayList<Cell> result = new ArrayList<Cell>();
+                    for (int y = from; y < to; y++) scan.scan(y, result);
+                    return result;
+                }
+            });
+        }
+        ArrayList<Cell> result = new ArrayList<Cell>();
+        for (ArrayList<Cell> cells : tasks.runAll(stripes)) {
+            result.addAll(cells);
+        }
+        return result;
+    }
+
+    private static CellSet toCellSet(List<Cell> cells)
+    {
+        CellSet set = new CellSet();
+        for (Cell cell : cells) set.add(cell);
         return set;
     }
 
@@ -426,7 +626,7 @@ public class TextGrid {
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
                 if (!isBlank(x, y)) {
-                    Cell start = new Cell(x, y);
+                    Cell start = Cell.at(x, y);
                     String str = String.valueOf(get(x, y));
                     char c = get(++x, y);
                     boolean finished = false;
@@ -505,21 +705,108 @@ public class TextGrid {
         removeMarkupTags();
     }
 
+    /**
+     * Does in one sweep down the grid what replaceTypeOnLine(),
+     * replacePointMarkersOnLine(), getAllBoundaries() and findArrowheads()
+     * do on a copy of this grid and what removeNonText() does on another
+     * copy, and finds the point markers, color codes and markup tags of
+     * this grid.
+     *
+     * Each of these steps only looks at the cells next to the one it is
+     * on, so they run a row or two behind the step they depend on and
+     * end up with the same results as when run one after the other.
+     */
+    public PreprocessedGrid preprocess()
+    {
+        return preprocess(TaskRunner.SEQUENTIAL);
+    }
+
+    /**
+     * With a parallel runner, the boundaries, arrowheads and point markers
+     * are looked for after the sweep, in stripes of rows (see
+     * {@link #scanRows(TaskRunner, RowScan)}).
+     */
+    public PreprocessedGrid preprocess(TaskRunner tasks)
+    {
+        boolean scanLater = tasks.isParallel();
+        TextGrid workGrid = new TextGrid(this);
+        TextGrid textGrid = new TextGrid(this);
+        ArrayList<Cell> boundaries = new ArrayList<Cell>();
+        ArrayList<Cell> arrowheads = new ArrayList<Cell>();
+        ArrayList<Cell> pointMarkers = new ArrayList<Cell>();
+        ArrayList<CellColorPair> colorCodes = new ArrayList<CellColorPair>();
+        ArrayList<CellTagPair> markupTags = new ArrayList<CellTagPair>();
+
+        //the non-text boundaries of a row can only be removed once
+        //those of the row below have been found
+        ArrayList<Cell> rowBoundaries = new ArrayList<Cell>();
+        ArrayList<Cell> nextRowBoundaries = new ArrayList<Cell>();
+
+        if (height > 0) workGrid.replaceTypeOnLine(0);
+        for (int y = 0; y < height + 2; y++) {
+            if (y < height) {
+                if (!scanLater) addPointMarkersOnLine(y, pointMarkers);
+                colorCodes.addAll(getRowTokens(y).colorCodes);
+                addMarkupTags(y, markupTags);
+
+                if (y + 1 < height) workGrid.replaceTypeOnLine(y + 1);
+                workGrid.replacePointMarkersOnLine(y);
+
+                textGrid.removeArrowheads(y);
+                textGrid.removeColorCodes(y);
+            }
+            if (y >= 1 && y <= height) {
+                if (!scanLater) {
+                    workGrid.addBoundaries(y - 1, boundaries);
+                    workGrid.addArrowheads(y - 1, arrowheads);
+                }
+
+                nextRowBoundaries = new ArrayList<Cell>();
+                textGrid.addBoundaries(y - 1, nextRowBoundaries);
+            }
+            if (y >= 2) {
+                for (Cell cell : rowBoundaries) {
+                    textGrid.set(cell, ' ');
+                }
+                textGrid.removeMarkupTags(y - 2);
+            }
+            rowBoundaries = nextRowBoundaries;
+        }
+
+        if (scanLater) {
+            return new PreprocessedGrid(workGrid, textGrid,
+                    workGrid.getAllBoundaries(tasks), workGrid.findArrowheads(tasks),
+                    getPointMarkersOnLine(tasks), colorCodes, markupTags);
+        }
+        return new PreprocessedGrid(workGrid, textGrid, toCellSet(boundaries), arrowheads,
+                toCellSet(pointMarkers), colorCodes, markupTags);
+    }
+
     public void removeArrowheads()
     {
-        int width = getWidth();
-        int height = getHeight();
         for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width; xi++) {
-                Cell cell = new Cell(xi, yi);
-                if (isArrowhead(cell)) set(cell, ' ');
-            }
+            removeArrowheads(yi);
+        }
+    }
+
+    private void removeArrowheads(int yi)
+    {
+        for (int xi = 0; xi < width; xi++) {
+            Cell cell = Cell.at(xi, yi);
+            if (isArrowhead(cell)) set(cell, ' ');
         }
     }
 
     public void removeColorCodes()
     {
-        for (CellColorPair o : findColorCodes()) {
+        for (int y = 0; y < height; y++) {
+            removeColorCodes(y);
+        }
+    }
+
+    private void removeColorCodes(int y)
+    {
+        for (CellColorPair o : getRowTokens(y).colorCodes) {
             Cell cell = o.cell;
             set(cell, ' ');
             cell = cell.getEast();
@@ -535,61 +822,50 @@ public class TextGrid {
     {
         ArrayList<Cell> toBeRemoved = new ArrayList<Cell>();
 
-        int width = getWidth();
-        int height = getHeight();
         for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width; xi++) {
-                Cell cell = new Cell(xi, yi);
-                if (isBoundary(cell)) toBeRemoved.add(cell);
-            }
+            addBoundaries(yi, toBeRemoved);
         }
 
         //remove in two stages, because decision of
         //isBoundary depends on contants of surrounding
         //cells
-        for (Object aToBeRemoved : toBeRemoved) {
-            Cell cell = (Cell) aToBeRemoved;
+        for (Cell cell : toBeRemoved) {
             set(cell, ' ');
         }
     }
 
     public ArrayList<Cell> findArrowheads()
     {
-        ArrayList<Cell> result = new ArrayList<Cell>();
-        int width = getWidth();
-        int height = getHeight();
-        for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width; xi++) {
-                Cell cell = new Cell(xi, yi);
-                if (isArrowhead(cell)) result.add(cell);
+        return findArrowheads(TaskRunner.SEQUENTIAL);
+    }
+
+    public ArrayList<Cell> findArrowheads(TaskRunner tasks)
+    {
+        ArrayList<Cell> result = new ArrayList<Cell>(scanRows(tasks, new RowScan() {
+            public void scan(int y, List<Cell> result)
+            {
+                addArrowheads(y, result);
             }
-        }
+        }));
         if (DEBUG) System.out.println(result.size() + " arrowheads found");
         return result;
     }
 
+    private void addArrowheads(int yi, List<Cell> result)
+    {
+        for (int xi = 0; xi < width; xi++) {
+            Cell cell = Cell.at(xi, yi);
+            if (isArrowhead(cell)) result.add(cell);
+        }
+    }
+
 
     public ArrayList<CellColorPair> findColorCodes()
     {
-        Pattern colorCodePattern = Pattern.compile("c[A-F0-9]{3}");
         ArrayList<CellColorPair> result = new ArrayList<CellColorPair>();
-        int width = getWidth();
         int height = getHeight();
-        for (int yi = 0; yi < height; yi++) {
-            for (int xi = 0; xi < width - 3; xi++) {
-                Cell cell = new Cell(xi, yi);
-                String s = getStringAt(cell, 4);
-                Matcher matcher = colorCodePattern.matcher(s);
-                if (matcher.matches()) {
-                    char cR = s.charAt(1);
-                    char cG = s.charAt(2);
-                    char cB = s.charAt(3);
-                    int r = Integer.valueOf(String.valueOf(cR), 16) * 17;
-                    int g = Integer.valueOf(String.valueOf(cG), 16) * 17;
-                    int b = Integer.valueOf(String.valueOf(cB), 16) * 17;
-                    result.add(new CellColorPair(cell, new Color(r, g, b)));
-                }
-            }
+        for (int y = 0; y < height; y++) {
+            result.addAll(getRowTokens(y).colorCodes);
         }
         if (DEBUG) System.out.println(result.size() + " color codes found");
         return result;
@@ -597,34 +873,129 @@ public class TextGrid {
 
     public ArrayList<CellTagPair> findMarkupTags()
     {
-        Pattern tagPattern = Pattern.compile("\\{(.+?)\\}");
         ArrayList<CellTagPair> result = new ArrayList<CellTagPair>();
 
-        int width = getWidth();
-        int height = getHeight();
         for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width - 3; x++) {
-                Cell cell = new Cell(x, y);
-                char c = get(cell);
-                if (c == '{') {
-                    String rowPart = rows.get(y).substring(x);
-                    Matcher matcher = tagPattern.matcher(rowPart);
-                    if (matcher.find()) {
-                        String tagName = matcher.group(1);
-                        if (markupTags.contains(tagName)) {
-                            if (DEBUG) System.out.println("found tag " + tagName + " at " + x + ", " + y);
-                            result.add(new CellTagPair(new Cell(x, y), tagName));
-                        }
-                    }
+            addMarkupTags(y, result);
+        }
+        return result;
+    }
+
+    private void addMarkupTags(int y, List<CellTagPair> result)
+    {
+        for (CellTagPair pair : getRowTokens(y).tags) {
+            if (markupTags.contains(pair.tag)) {
+                if (DEBUG) System.out.println("found tag " + pair.tag + " at " + pair.cell.x + ", " + pair.cell.y);
+                result.add(pair);
+            }
+        }
+    }
+
+    /**
+     * The color codes and the candidate markup tags found on a row. The
+     * tags are checked against the known markup tags when looked up,
+     * since more can be added at any time.
+     */
+    private static class RowTokens {
+        private static final RowTokens NONE = new RowTokens(
+                Collections.<CellColorPair>emptyList(), Collections.<CellTagPair>emptyList());
+
+        final List<CellColorPair> colorCodes;
+        final List<CellTagPair> tags;
+
+        RowTokens(List<CellColorPair> colorCodes, List<CellTagPair> tags)
+        {
+            this.colorCodes = colorCodes;
+            this.tags = tags;
+        }
+    }
+
+    private RowTokens getRowTokens(int y)
+    {
+        RowTokens[] rowTokens = this.rowTokens;
+        if (rowTokens == null) this.rowTokens = rowTokens = new RowTokens[height];
+        RowTokens tokens = rowTokens[y];
+        if (tokens == null) {
+            tokens = lexRow(y);
+            rowTokens[y] = tokens;
+        }
+        return tokens;
+    }
+
+    /**
+     * Finds the color codes (<code>c[A-F0-9]{3}</code>) and the tags
+     * (the shortest <code>\{(.+?)\}</code> from each '{') that start on
+     * row <code>y</code>, in a single pass over the row.
+     */
+    private RowTokens lexRow(int y)
+    {
+        List<CellColorPair> colorCodes = Collections.emptyList();
+        List<CellTagPair> tags = Collections.emptyList();
+        int start = index(0, y);
+        for (int x = 0; x < width - 3; x++) {
+            char c = cells[start + x];
+            if (c == 'c') {
+                int r = hexDigit(cells[start + x + 1]);
+                int g = hexDigit(cells[start + x + 2]);
+                int b = hexDigit(cells[start + x + 3]);
+                if (r != -1 && g != -1 && b != -1) {
+                    if (colorCodes.isEmpty()) colorCodes = new ArrayList<CellColorPair>();
+                    colorCodes.add(new CellColorPair(Cell.at(x, y), new Color(r * 17, g * 17, b * 17)));
+                }
+            } else if (c == '{') {
+                String tagName = findTagFrom(start, x);
+                if (tagName != null) {
+                    if (tags.isEmpty()) tags = new ArrayList<CellTagPair>();
+                    tags.add(new CellTagPair(Cell.at(x, y), tagName));
                 }
             }
         }
-        return result;
+        if (colorCodes.isEmpty() && tags.isEmpty()) return RowTokens.NONE;
+        return new RowTokens(colorCodes, tags);
+    }
+
+    /**
+     * @return the value of an upper case hex digit, or -1
+     */
+    private static int hexDigit(char c)
+    {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Looks for <code>\{(.+?)\}</code> in the rest of the row the way
+     * Matcher.find() would, starting with the '{' at <code>x</code>.
+     *
+     * @return the tag name, or null if there is no match
+     */
+    private String findTagFrom(int rowStart, int x)
+    {
+        for (int from = x; from < width; from++) {
+            if (cells[rowStart + from] != '{') continue;
+            for (int i = from + 1; i < width; i++) {
+                char c = cells[rowStart + i];
+                //'.' does not match line terminators
+                if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') break;
+                if (c == '}' && i > from + 1) return new String(cells, rowStart + from + 1, i - from - 1);
+            }
+        }
+        return null;
     }
 
     public void removeMarkupTags()
     {
-        for (CellTagPair pair : findMarkupTags()) {
+        for (int y = 0; y < height; y++) {
+            removeMarkupTags(y);
+        }
+    }
+
+    private void removeMarkupTags(int y)
+    {
+        ArrayList<CellTagPair> tags = new ArrayList<CellTagPair>();
+        addMarkupTags(y, tags);
+        for (CellTagPair pair : tags) {
             String tagName = pair.tag;
             if (tagName == null) continue;
             int length = 2 + tagName.length();
@@ -707,7 +1078,7 @@ public class TextGrid {
      */
     public boolean isLinesEnd(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.linesEndCriteria);
+        return hasType(cell.x, cell.y, LINES_END);
     }
 
     public boolean isPointCell(Cell cell)
@@ -742,32 +1113,32 @@ public class TextGrid {
 
     public boolean isStub(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.stubCriteria);
+        return hasType(cell.x, cell.y, STUB);
     }
 
     public boolean isCrossOnLine(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.crossOnLineCriteria);
+        return hasType(cell.x, cell.y, CROSS_ON_LINE);
     }
 
     public boolean isHorizontalCrossOnLine(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.horizontalCrossOnLineCriteria);
+        return hasType(cell.x, cell.y, HORIZONTAL_CROSS_ON_LINE);
     }
 
     public boolean isVerticalCrossOnLine(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.verticalCrossOnLineCriteria);
+        return hasType(cell.x, cell.y, VERTICAL_CROSS_ON_LINE);
     }
 
     public boolean isStarOnLine(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.starOnLineCriteria);
+        return hasType(cell.x, cell.y, STAR_ON_LINE);
     }
 
     public boolean isLoneDiagonal(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.loneDiagonalCriteria);
+        return hasType(cell.x, cell.y, LONE_DIAGONAL);
     }
 
 
@@ -826,7 +1197,7 @@ public class TextGrid {
         int height = getHeight();
         for (int yi = 0; yi < height; yi++) {
             for (int xi = 0; xi < width; xi++) {
-                Cell cell = new Cell(xi, yi);
+                Cell cell = Cell.at(xi, yi);
                 if (isBullet(cell, bulletChars)) {
                     set(cell, ' ');
                     set(cell.getEast(), '\u2022');
@@ -859,7 +1230,7 @@ public class TextGrid {
         int result = 0;
         int height = getHeight();
         for (int y = 0; y < height; y++) {
-            Cell cCell = new Cell(cell.x, y);
+            Cell cCell = Cell.at(cell.x, y);
             if (!cCell.equals(cell) && isStringsStart(cCell)) {
                 result++;
             }
@@ -873,7 +1244,7 @@ public class TextGrid {
         int result = 0;
         int height = getHeight();
         for (int y = 0; y < height; y++) {
-            Cell cCell = new Cell(cell.x, y);
+            Cell cCell = Cell.at(cell.x, y);
             if (!cCell.equals(cell) && isStringsEnd(cCell)) {
                 result++;
             }
@@ -1065,84 +1436,151 @@ public class TextGrid {
 
     public boolean isCorner(int x, int y)
     {
-        return (isNormalCorner(x, y) || isRoundCorner(x, y));
+        return hasType(x, y, NORMAL_CORNER | ROUND_CORNER);
+    }
+
+    /**
+     * Tests whether the cell at <code>x</code>, <code>y</code> has any of
+     * the <code>type</code> bits, classifying it first if needed.
+     */
+    private boolean hasType(int x, int y, int type)
+    {
+        if (x >= width || y >= height || x < 0 || y < 0) return (classify(x, y) & type) != 0;
+        //read once, so that threads only reading the grid can share it
+        int[] types = this.types;
+        if (types == null) this.types = types = new int[width * height];
+        int i = y * width + x;
+        int cellType = types[i];
+        if (cellType == 0) {
+            cellType = classify(x, y);
+            types[i] = cellType;
+        }
+        return (cellType & type) != 0;
+    }
+
+    /**
+     * Matches the cell at <code>x</code>, <code>y</code> against all the
+     * pattern groups of the cell predicates in one go.
+     */
+    private int classify(int x, int y)
+    {
+        int type = CLASSIFIED;
+        if (GridPatternGroup.corner1Criteria.isAnyMatchedBy(this, x, y)) type |= CORNER1;
+        if (GridPatternGroup.corner2Criteria.isAnyMatchedBy(this, x, y)) type |= CORNER2;
+        if (GridPatternGroup.corner3Criteria.isAnyMatchedBy(this, x, y)) type |= CORNER3;
+        if (GridPatternGroup.corner4Criteria.isAnyMatchedBy(this, x, y)) type |= CORNER4;
+        if (GridPatternGroup.normalCornerCriteria.isAnyMatchedBy(this, x, y)) type |= NORMAL_CORNER;
+        if (GridPatternGroup.roundCornerCriteria.isAnyMatchedBy(this, x, y)) type |= ROUND_CORNER;
+        if (GridPatternGroup.crossCriteria.isAnyMatchedBy(this, x, y)) type |= CROSS;
+        if (GridPatternGroup.KCriteria.isAnyMatchedBy(this, x, y)) type |= K;
+        if (GridPatternGroup.inverseKCriteria.isAnyMatchedBy(this, x, y)) type |= INVERSE_K;
+        if (GridPatternGroup.TCriteria.isAnyMatchedBy(this, x, y)) type |= T;
+        if (GridPatternGroup.inverseTCriteria.isAnyMatchedBy(this, x, y)) type |= INVERSE_T;
+        if (GridPatternGroup.intersectionCriteria.isAnyMatchedBy(this, x, y)) type |= INTERSECTION;
+        if (GridPatternGroup.stubCriteria.isAnyMatchedBy(this, x, y)) type |= STUB;
+        if (GridPatternGroup.linesEndCriteria.isAnyMatchedBy(this, x, y)) type |= LINES_END;
+        if (GridPatternGroup.crossOnLineCriteria.isAnyMatchedBy(this, x, y)) type |= CROSS_ON_LINE;
+        if (GridPatternGroup.horizontalCrossOnLineCriteria.isAnyMatchedBy(this, x, y)) type |= HORIZONTAL_CROSS_ON_LINE;
+        if (GridPatternGroup.verticalCrossOnLineCriteria.isAnyMatchedBy(this, x, y)) type |= VERTICAL_CROSS_ON_LINE;
+        if (GridPatternGroup.starOnLineCriteria.isAnyMatchedBy(this, x, y)) type |= STAR_ON_LINE;
+        if (GridPatternGroup.loneDiagonalCriteria.isAnyMatchedBy(this, x, y)) type |= LONE_DIAGONAL;
+        return type;
+    }
+
+    /**
+     * Forgets what is cached about the cells of the rectangle from
+     * <code>x1</code>, <code>y1</code> to <code>x2</code>, <code>y2</code>
+     * (inclusive): the tokens of its rows and the type codes of the cells
+     * whose neighbourhood overlaps it.
+     */
+    private void cellsChanged(int x1, int y1, int x2, int y2)
+    {
+        if (rowTokens != null) {
+            for (int y = Math.max(y1, 0); y <= Math.min(y2, height - 1); y++) rowTokens[y] = null;
+        }
+        if (types == null) return;
+        int fromX = Math.max(x1 - 1, 0);
+        int toX = Math.min(x2 + 1, width - 1);
+        if (fromX > toX) return;
+        for (int y = Math.max(y1 - 1, 0); y <= Math.min(y2 + 1, height - 1); y++) {
+            Arrays.fill(types, y * width + fromX, y * width + toX + 1, 0);
+        }
     }
 
 
     public boolean matchesAny(Cell cell, GridPatternGroup criteria)
     {
-        TextGrid subGrid = getTestingSubGrid(cell);
-        return subGrid.matchesAny(criteria);
+        return criteria.isAnyMatchedBy(this, cell.x, cell.y);
     }
 
     public boolean isCorner1(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.corner1Criteria);
+        return hasType(cell.x, cell.y, CORNER1);
     }
 
     public boolean isCorner2(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.corner2Criteria);
+        return hasType(cell.x, cell.y, CORNER2);
     }
 
     public boolean isCorner3(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.corner3Criteria);
+        return hasType(cell.x, cell.y, CORNER3);
     }
 
     public boolean isCorner4(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.corner4Criteria);
+        return hasType(cell.x, cell.y, CORNER4);
     }
 
     public boolean isCross(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.crossCriteria);
+        return hasType(cell.x, cell.y, CROSS);
     }
 
     public boolean isK(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.KCriteria);
+        return hasType(cell.x, cell.y, K);
     }
 
     public boolean isInverseK(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.inverseKCriteria);
+        return hasType(cell.x, cell.y, INVERSE_K);
     }
 
     public boolean isT(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.TCriteria);
+        return hasType(cell.x, cell.y, T);
     }
 
     public boolean isInverseT(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.inverseTCriteria);
+        return hasType(cell.x, cell.y, INVERSE_T);
     }
 
     public boolean isNormalCorner(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.normalCornerCriteria);
+        return hasType(cell.x, cell.y, NORMAL_CORNER);
     }
 
     public boolean isNormalCorner(int x, int y)
     {
-        return isNormalCorner(new Cell(x, y));
+        return hasType(x, y, NORMAL_CORNER);
     }
 
     public boolean isRoundCorner(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.roundCornerCriteria);
+        return hasType(cell.x, cell.y, ROUND_CORNER);
     }
 
     public boolean isRoundCorner(int x, int y)
     {
-        return isRoundCorner(new Cell(x, y));
+        return hasType(x, y, ROUND_CORNER);
     }
 
     public boolean isIntersection(Cell cell)
     {
-        return matchesAny(cell, GridPatternGroup.intersectionCriteria);
+        return hasType(cell.x, cell.y, INTERSECTION);
     }
 
     public void copyCellsTo(CellSet cells, TextGrid grid)
@@ -1159,13 +1597,8 @@ public class TextGrid {
                 ) {
             return false;
         }
-        int height = grid.getHeight();
-        for (int i = 0; i < height; i++) {
-            String row1 = this.getRow(i).toString();
-            String row2 = grid.getRow(i).toString();
-            if (!row1.equals(row2)) return false;
-        }
-        return true;
+        //the padding is always 0, so it can be compared too
+        return Arrays.equals(cells, grid.cells);
     }
 
     /**
@@ -1180,7 +1613,7 @@ public class TextGrid {
 
     public CellSet fillContinuousArea(int x, int y, char c)
     {
-        return fillContinuousArea(new Cell(x, y), c);
+        return fillContinuousArea(Cell.at(x, y), c);
     }
 
     public CellSet fillContinuousArea(Cell cell, char c)
@@ -1197,27 +1630,7 @@ public class TextGrid {
         if (oldChar == newChar) return cellsFilled;
         if (isOutOfBounds(seed)) return cellsFilled;
 
-        Deque<Cell> stack = new ArrayDeque<>();
-
-        stack.push(seed);
-
-        while (!stack.isEmpty()) {
-            Cell cell = stack.pop();
-
-            set(cell, newChar);
-            cellsFilled.add(cell);
-
-            Cell nCell = cell.getNorth();
-            Cell sCell = cell.getSouth();
-            Cell eCell = cell.getEast();
-            Cell wCell = cell.getWest();
-
-            if (get(nCell) == oldChar) stack.push(nCell);
-            if (get(sCell) == oldChar) stack.push(sCell);
-            if (get(eCell) == oldChar) stack.push(eCell);
-            if (get(wCell) == oldChar) stack.push(wCell);
-        }
-
+        scanlineFill(seed.x, seed.y, newChar, cellsFilled, null);
         return cellsFilled;
     }
 
@@ -1235,35 +1648,73 @@ public class TextGrid {
         if (isOutOfBounds(seed)) return boundaries;
 
         char newChar = 1; //TODO: kludge
+        if (oldChar == newChar) return boundaries;
 
-        Deque<Cell> stack = new ArrayDeque<>();
-
-        stack.push(seed);
+        scanlineFill(seed.x, seed.y, newChar, null, boundaries);
+        return boundaries;
+    }
 
-        while (!stack.isEmpty()) {
-            Cell cell = stack.pop();
+    /**
+     * Replaces the 4-connected area of cells that have the same char as the
+     * cell at <code>x</code>, <code>y</code> with <code>newChar</code>, one
+     * run of cells along a row at a time.
+     *
+     * @param filled     if not null, receives the cells of the area
+     * @param boundaries if not null, receives the '*' cells next to the
+     *                   area (unless the area is itself made of '*')
+     */
+    private void scanlineFill(int x, int y, char newChar, CellSet filled, CellSet boundaries)
+    {
+        char oldChar = get(x, y);
+        if (oldChar == '*') boundaries = null;
 
-            set(cell, newChar);
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = index(x, y);
 
-            Cell nCell = cell.getNorth();
-            Cell sCell = cell.getSouth();
-            Cell eCell = cell.getEast();
-            Cell wCell = cell.getWest();
+        while (stackSize > 0) {
+            int start = stack[--stackSize];
+            if (cells[start] != oldChar) continue;
 
-            if (get(nCell) == oldChar) stack.push(nCell);
-            else if (get(nCell) == '*') boundaries.add(nCell);
+            int row = start / stride - PADDING;
+            int rowStart = index(0, row);
+            int rowEnd = rowStart + width - 1;
 
-            if (get(sCell) == oldChar) stack.push(sCell);
-            else if (get(sCell) == '*') boundaries.add(sCell);
+            int left = start;
+            while (left > rowStart && cells[left - 1] == oldChar) left--;
+            int right = start;
+            while (right < rowEnd && cells[right + 1] == oldChar) right++;
 
-            if (get(eCell) == oldChar) stack.push(eCell);
-            else if (get(eCell) == '*') boundaries.add(eCell);
+            Arrays.fill(cells, left, right + 1, newChar);
+            cellsChanged(left - rowStart, row, right - rowStart, row);
+            if (filled != null) {
+                for (int i = left; i <= right; i++) filled.add(i - rowStart, row);
+            }
+            if (boundaries != null) {
+                if (left > rowStart && cells[left - 1] == '*') boundaries.add(left - 1 - rowStart, row);
+                if (right < rowEnd && cells[right + 1] == '*') boundaries.add(right + 1 - rowStart, row);
+            }
 
-            if (get(wCell) == oldChar) stack.push(wCell);
-            else if (get(wCell) == '*') boundaries.add(wCell);
+            //seed the runs of the rows above and below that touch this one
+            for (int neighbourRow = row - 1; neighbourRow <= row + 1; neighbourRow += 2) {
+                if (neighbourRow < 0 || neighbourRow >= height) continue;
+                int offset = (neighbourRow - row) * stride;
+                boolean inRun = false;
+                for (int i = left; i <= right; i++) {
+                    char c = cells[i + offset];
+                    if (c == oldChar) {
+                        if (!inRun) {
+                            if (stackSize == stack.length) stack = Arrays.copyOf(stack, stackSize * 2);
+                            stack[stackSize++] = i + offset;
+                            inRun = true;
+                        }
+                    } else {
+                        inRun = false;
+                        if (boundaries != null && c == '*') boundaries.add(i - rowStart, neighbourRow);
+                    }
+                }
+            }
         }
-
-        return boundaries;
     }
 
     public boolean cellContainsDashedLineChar(Cell cell)
@@ -1274,125 +1725,220 @@ public class TextGrid {
 
     public void loadFrom(InputStream is, ProcessingOptions options) throws IOException
     {
-        Charset encoding = (options == null) ? Charset.defaultCharset() : options.getCharacterEncoding();
-        ArrayList<StringBuilder> lines = new ArrayList<StringBuilder>();
-        String[] linesArray = FileUtils.readFile(is, encoding).split("(\r)?\n");
-        for (String line : linesArray) {
-            lines.add(new StringBuilder(line));
+        loadFrom(Channels.newChannel(is), options);
+    }
+
+    /**
+     * Decodes the text of <code>channel</code> straight into the grid, a
+     * buffer at a time, without holding the whole input as bytes or as a
+     * String.
+     */
+    public void loadFrom(ReadableByteChannel channel, ProcessingOptions options) throws IOException
+    {
+        Charset encoding = (options == null) ? null : options.getCharacterEncoding();
+        if (encoding == null) encoding = Charset.defaultCharset();
+        //the same replacements as new String(bytes, encoding)
+        CharsetDecoder decoder = encoding.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        RowCollector rows = new RowCollector(getTabSize(options));
+        ByteBuffer bytes = ByteBuffer.allocate(8192);
+        CharBuffer chars = CharBuffer.allocate(8192);
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            endOfInput = channel.read(bytes) == -1;
+            bytes.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(bytes, chars, endOfInput);
+                chars.flip();
+                rows.append(chars);
+                chars.clear();
+            } while (result.isOverflow());
+            bytes.compact();
         }
+        CoderResult result;
+        do {
+            result = decoder.flush(chars);
+            chars.flip();
+            rows.append(chars);
+            chars.clear();
+        } while (result.isOverflow());
+        rows.endRow();
 
-        initialiseWithLines(lines, options);
+        initialiseWith(rows, options);
     }
 
     public void initialiseWithText(String text, ProcessingOptions options) throws UnsupportedEncodingException {
+        initialiseWithText(text, 0, text.length(), options);
+    }
+
+    /**
+     * Reads the grid from the chars <code>start</code> (inclusive) to
+     * <code>end</code> (exclusive) of <code>text</code>, without copying
+     * them out first. Useful for rendering one diagram out of a larger
+     * document.
+     */
+    public void initialiseWithText(CharSequence text, int start, int end, ProcessingOptions options)
+    {
+        initialiseWithText(CharBuffer.wrap(text, start, end), options);
+    }
+
+    /**
+     * Reads the grid from <code>length</code> chars of <code>text</code>,
+     * starting at <code>offset</code>, without copying them out first.
+     */
+    public void initialiseWithText(char[] text, int offset, int length, ProcessingOptions options)
+    {
+        initialiseWithText(CharBuffer.wrap(text, offset, length), options);
+    }
 
-        ArrayList<StringBuilder> lines = new ArrayList<StringBuilder>();
-        String[] linesArray = text.split("(\r)?\n");
-        for(int i = 0; i  < linesArray.length; i++)
-            lines.add(new StringBuilder(linesArray[i]));
+    private void initialiseWithText(CharBuffer text, ProcessingOptions options)
+    {
+        RowCollector rows = new RowCollector(getTabSize(options));
+        rows.append(text);
+        rows.endRow();
 
-        initialiseWithLines(lines, options);
+        initialiseWith(rows, options);
     }
 
     public void initialiseWithLines(ArrayList<StringBuilder> lines, ProcessingOptions options) throws UnsupportedEncodingException
     {
-
-        //remove blank rows at the bottom
-        boolean done = false;
-        int i;
-        for (i = lines.size() - 1; i >= 0 && !done; i--) {
-            StringBuilder row = lines.get(i);
-            if (!StringUtils.isBlank(row.toString())) done = true;
+        RowCollector rows = new RowCollector(getTabSize(options));
+        for (StringBuilder line : lines) {
+            rows.append(CharBuffer.wrap(line));
+            rows.endRow();
         }
-        rows = new ArrayList<StringBuilder>(lines.subList(0, i + 2));
-
-        if (options != null) fixTabs(options.getTabSize());
-        else fixTabs(ProcessingOptions.DEFAULT_TAB_SIZE);
 
+        initialiseWith(rows, options);
+    }
 
-        // make all lines of equal length
-        // add blank outline around the buffer to prevent fill glitch
-        // convert tabs to spaces (or remove them if setting is 0)
+    private static int getTabSize(ProcessingOptions options)
+    {
+        return options != null ? options.getTabSize() : ProcessingOptions.DEFAULT_TAB_SIZE;
+    }
 
+    /**
+     * Copies the rows into the grid, dropping the blank rows at the bottom
+     * and adding a blank outline around them (to prevent fill glitches).
+     */
+    private void initialiseWith(RowCollector rows, ProcessingOptions options)
+    {
         int blankBorderSize = 2;
 
+        //remove blank rows at the bottom, but keep at least one row
+        int rowCount = Math.max(rows.lastNonBlankRow + 1, Math.min(rows.count, 1));
+
         int maxLength = 0;
-        int index = 0;
+        for (int i = 0; i < rowCount; i++) {
+            maxLength = Math.max(maxLength, rows.lengthOf(i));
+        }
 
-        Iterator<StringBuilder> it = rows.iterator();
-        while (it.hasNext()) {
-            String row = it.next().toString();
-            if (row.length() > maxLength) maxLength = row.length();
-            rows.set(index, new StringBuilder(row));
-            index++;
+        allocate(maxLength + blankBorderSize * 2, rowCount + blankBorderSize * 2);
+        for (int y = 0; y < height; y++) {
+            int start = index(0, y);
+            Arrays.fill(cells, start, start + width, ' ');
+        }
+        for (int i = 0; i < rowCount; i++) {
+            System.arraycopy(rows.text, rows.starts[i], cells,
+                    index(blankBorderSize, i + blankBorderSize), rows.lengthOf(i));
         }
 
-        it = rows.iterator();
-        ArrayList<StringBuilder> newRows = new ArrayList<StringBuilder>();
-        //TODO: make the following depend on blankBorderSize
+        replaceBullets(options == null ? ProcessingOptions.DEFAULT_BULLET_CHARS : options.getBulletCharacters());
+        replaceHumanColorCodes(options == null ? ColorPalette.DEFAULT : ColorPalette.DEFAULT.with(options.getHumanColorCodes()));
+    }
 
-        StringBuilder topBottomRow =
-                new StringBuilder(StringUtils.repeatString(" ", maxLength + blankBorderSize * 2));
+    /**
+     * Splits text into rows as it comes, at "\n" or "\r\n", expanding the
+     * tabs. The chars of all the rows are kept back to back in a single
+     * array.
+     */
+    private static class RowCollector {
+        private final int tabSize;
 
-        newRows.add(topBottomRow);
-        newRows.add(topBottomRow);
-        while (it.hasNext()) {
-            StringBuilder row = it.next();
+        char[] text = new char[1024];
+        private int length = 0;
 
-            if (row.length() < maxLength) {
-                String borderString = StringUtils.repeatString(" ", blankBorderSize);
-                StringBuilder newRow = new StringBuilder();
+        /**
+         * Where each row starts in <code>text</code>; the row in progress
+         * starts at <code>starts[count]</code>
+         */
+        int[] starts = new int[64];
+        int count = 0;
 
-                newRow.append(borderString);
-                newRow.append(row);
-                newRow.append(StringUtils.repeatString(" ", maxLength - row.length()));
-                newRow.append(borderString);
+        int lastNonBlankRow = -1;
+        private boolean rowIsBlank = true;
+        private boolean pendingCarriageReturn = false;
 
-                newRows.add(newRow);
-            } else { //TODO: why is the following line like that?
-                newRows.add(new StringBuilder("  ").append(row).append("  "));
-            }
+        RowCollector(int tabSize)
+        {
+            this.tabSize = tabSize;
         }
-        //TODO: make the following depend on blankBorderSize
-        newRows.add(topBottomRow);
-        newRows.add(topBottomRow);
-        rows = newRows;
-
-        replaceBullets(options == null ? ProcessingOptions.DEFAULT_BULLET_CHARS : options.getBulletCharacters());
-        replaceHumanColorCodes();
-    }
 
-    private void fixTabs(int tabSize)
-    {
+        /**
+         * Takes in all the remaining chars of <code>chars</code>.
+         */
+        void append(CharBuffer chars)
+        {
+            while (chars.hasRemaining()) {
+                char c = chars.get();
+                if (pendingCarriageReturn) {
+                    pendingCarriageReturn = false;
+                    if (c == '\n') {
+                        endRow();
+                        continue;
+                    }
+                    put('\r');
+                }
+                if (c == '\r') {
+                    pendingCarriageReturn = true;
+                } else if (c == '\n') {
+                    endRow();
+                } else {
+                    put(c);
+                }
+            }
+        }
 
-        int rowIndex = 0;
+        void endRow()
+        {
+            if (pendingCarriageReturn) {
+                pendingCarriageReturn = false;
+                put('\r');
+            }
+            if (!rowIsBlank) lastNonBlankRow = count;
+            rowIsBlank = true;
+            count++;
+            if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+            starts[count] = length;
+        }
 
-        for (StringBuilder row1 : rows) {
-            String row = row1.toString();
-            StringBuilder newRow = new StringBuilder();
+        int lengthOf(int row)
+        {
+            return starts[row + 1] - starts[row];
+        }
 
-            char[] chars = row.toCharArray();
-            for (char c : chars) {
-                if (c == '\t') {
-                    int spacesLeft = tabSize - newRow.length() % tabSize;
-                    if (DEBUG) {
-                        System.out.println("Found tab. Spaces left: " + spacesLeft);
-                    }
-                    String spaces = StringUtils.repeatString(" ", spacesLeft);
-                    newRow.append(spaces);
-                } else {
-                    String character = Character.toString(c);
-                    newRow.append(character);
+        private void put(char c)
+        {
+            //blank as in \s
+            if (c != ' ' && c != '\t' && c != '\u000B' && c != '\f' && c != '\r') rowIsBlank = false;
+            if (c == '\t') {
+                int spacesLeft = tabSize - (length - starts[count]) % tabSize;
+                if (DEBUG) {
+                    System.out.println("Found tab. Spaces left: " + spacesLeft);
                 }
+                for (int i = 0; i < spacesLeft; i++) add(' ');
+            } else {
+                add(c);
             }
-            rows.set(rowIndex, newRow);
-            rowIndex++;
         }
-    }
 
-    protected ArrayList<StringBuilder> getRows()
-    {
-        return rows;
+        private void add(char c)
+        {
+            if (length == text.length) text = Arrays.copyOf(text, length * 2);
+            text[length++] = c;
+        }
     }
 
     public class CellColorPair {
@@ -1430,9 +1976,46 @@ public class TextGrid {
 
 
     public static class Cell {
+
+        /**
+         * Number of rows and columns of shared cells, from -1 (the cells
+         * just outside a grid) onwards.
+         */
+        private static final int CACHE_SIZE = 512;
+
+        /**
+         * The shared cells, row after row; each row is created when one of
+         * its cells is first asked for. Cells are immutable, so a race
+         * can at worst create the same cell twice.
+         */
+        private static final Cell[][] cache = new Cell[CACHE_SIZE][];
+
         public final int x;
         public final int y;
 
+        /**
+         * Returns a shared instance of the cell at <code>x</code>,
+         * <code>y</code>, or a new one if it is too far out to be cached.
+         * Prefer this to the constructor in loops over the grid.
+         */
+        public static Cell at(int x, int y)
+        {
+            int column = x + 1;
+            int row = y + 1;
+            if (column < 0 || row < 0 || column >= CACHE_SIZE || row >= CACHE_SIZE) return new Cell(x, y);
+            Cell[] cells = cache[row];
+            if (cells == null) {
+                cells = new Cell[CACHE_SIZE];
+                cache[row] = cells;
+            }
+            Cell cell = cells[column];
+            if (cell == null) {
+                cell = new Cell(x, y);
+                cells[column] = cell;
+            }
+            return cell;
+        }
+
         public Cell(Cell cell)
         {
             this(cell.x, cell.y);
@@ -1446,22 +2029,22 @@ public class TextGrid {
 
         public Cell getNorth()
         {
-            return new Cell(x, y - 1);
+            return at(x, y - 1);
         }
 
         public Cell getSouth()
         {
-            return new Cell(x, y + 1);
+            return at(x, y + 1);
         }
 
         public Cell getEast()
         {
-            return new Cell(x + 1, y);
+            return at(x + 1, y);
         }
 
         public Cell getWest()
         {
-            return new Cell(x - 1, y);
+            return at(x - 1, y);
         }
 
         @Override
@@ -0,0 +1,92 @@
+package org.stathissideris.ditaa.graphics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the running sum passes of BoxBlur against plain averages over
+ * the box around each sample.
+ */
+public class TestBoxBlur {
+
+    @Test
+    public void testSinglePixel()
+    {
+        byte[] samples = new byte[12 * 12];
+        samples[5 * 12 + 5] = (byte) 255;
+        BoxBlur.BOX.blur(samples, 0, 12, 12, 12);
+
+        //the box reaches 3 back and 2 forward, so the pixel spreads 2 back
+        //and 3 forward; 255 / 6 is 43 after the first pass and 7 after both
+        for (int y = 0; y < 12; y++) {
+            for (int x = 0; x < 12; x++) {
+                boolean covered = x >= 3 && x <= 8 && y >= 3 && y <= 8;
+                assertEquals(x + ", " + y, covered ? 7 : 0, samples[y * 12 + x] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void testBoxAgainstAverage()
+    {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            int width = 1 + random.nextInt(20);
+            int height = 1 + random.nextInt(20);
+            int[] image = new int[width * height];
+            for (int i = 0; i < image.length; i++) image[i] = random.nextInt(256);
+
+            //the samples sit inside a larger array, with bytes around them
+            //that must be left alone
+            int scanline = width + 3;
+            int offset = 2 * scanline + 1;
+            byte[] samples = new byte[offset + height * scanline];
+            Arrays.fill(samples, (byte) 99);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) samples[offset + y * scanline + x] = (byte) image[y * width + x];
+            }
+            BoxBlur.BOX.blur(samples, offset, scanline, width, height);
+
+            for (int i = 0; i < samples.length; i++) {
+                int x = (i - offset) % scanline;
+                int y = (i - offset) / scanline;
+                if (i < offset || x >= width) {
+                    assertEquals(99, samples[i]);
+                    continue;
+                }
+                double sum = 0;
+                for (int dy = -3; dy <= 2; dy++) {
+                    for (int dx = -3; dx <= 2; dx++) {
+                        sum += image[clamp(y + dy, height) * width + clamp(x + dx, width)];
+                    }
+                }
+                //each of the two passes rounds, so it can be 1 away
+                double average = sum / 36;
+                int actual = samples[i] & 0xFF;
+                assertTrue(width + "x" + height + " at " + x + ", " + y + ": " + actual + " for " + average,
+                        Math.abs(actual - average) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testGaussianKeepsUniformField()
+    {
+        for (int value : new int[]{0, 1, 128, 254, 255}) {
+            byte[] samples = new byte[17 * 9];
+            Arrays.fill(samples, (byte) value);
+            BoxBlur.GAUSSIAN.blur(samples, 0, 17, 17, 9);
+            for (byte sample : samples) assertEquals(value, sample & 0xFF);
+        }
+    }
+
+    private static int clamp(int i, int length)
+    {
+        return i < 0 ? 0 : i >= length ? length - 1 : i;
+    }
+}
@@ -0,0 +1,71 @@
+package org.stathissideris.ditaa.graphics;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the geometry a DiagramShape keeps follows its points when
+ * they are moved.
+ */
+public class TestDiagramShape {
+
+    @Test
+    public void testMovingPointsChangesGeometry()
+    {
+        DiagramShape shape = makeSquare();
+        assertEquals(new Rectangle(0, 0, 10, 10), shape.getBounds());
+        assertTrue(shape.contains(new ShapePoint(5, 5)));
+
+        shape.getPoint(2).moveTo(new ShapePoint(20, 20));
+        shape.getPoint(1).setLocation(20, 0);
+        shape.getPoint(3).setLocation(0.0, 20.0);
+        assertEquals(new Rectangle(0, 0, 20, 20), shape.getBounds());
+        assertTrue(shape.contains(new ShapePoint(15, 15)));
+
+        new ShapeEdge(shape.getPoint(0), shape.getPoint(1), shape).translate(0, 5);
+        assertFalse(shape.contains(new ShapePoint(10, 2)));
+
+        shape.scale(0.5f);
+        assertEquals(new Rectangle(0, 2, 10, 8), shape.getBounds());
+    }
+
+    @Test
+    public void testLockedPointDoesNotMove()
+    {
+        DiagramShape shape = makeSquare();
+        shape.getBounds();
+        shape.getPoint(2).setLocked(true);
+        shape.getPoint(2).moveTo(new ShapePoint(20, 20));
+        assertEquals(new Rectangle(0, 0, 10, 10), shape.getBounds());
+    }
+
+    @Test
+    public void testPointsCannotBeAddedThroughList()
+    {
+        DiagramShape shape = makeSquare();
+        try {
+            shape.getPoints().add(new ShapePoint(30, 30));
+            fail("added a point through getPoints()");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        assertEquals(4, shape.getPoints().size());
+    }
+
+    private static DiagramShape makeSquare()
+    {
+        DiagramShape shape = new DiagramShape();
+        shape.setClosed(true);
+        shape.addToPoints(new ShapePoint(0, 0));
+        shape.addToPoints(new ShapePoint(10, 0));
+        shape.addToPoints(new ShapePoint(10, 10));
+        shape.addToPoints(new ShapePoint(0, 10));
+        return shape;
+    }
+}
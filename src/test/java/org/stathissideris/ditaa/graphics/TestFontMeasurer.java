@@ -0,0 +1,65 @@
+package org.stathissideris.ditaa.graphics;
+
+import org.junit.Test;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the widths FontMeasurer adds up from advances are the
+ * integer widths of the string bounds, which the layout of the text
+ * depends on.
+ */
+public class TestFontMeasurer {
+
+    private static final String[] SAMPLES = {
+            "", " ", "a", "Hello, World!", "  two  spaces  ", "{d} c0F0 *",
+            "\u00C0\u00C9\u00CE\u00F5\u00FC \u00DF\u00FF \u0141\u0105\u017C\u0144",
+            "\u250C\u2500\u252C\u2500\u2510 \u2502x\u2502 \u2514\u2500\u2534\u2500\u2518 \u2580\u2584\u2588\u2591\u2592\u2593",
+            "mixed \u2500\u2500 text \u00E9",
+            "falls back \u03B1\u03B2\u03B3 \u4E2D\u6587"
+    };
+
+    @Test
+    public void testWidthsMatchStringBounds() throws IOException, URISyntaxException
+    {
+        List<String> strings = new ArrayList<String>(Arrays.asList(SAMPLES));
+        File[] resources = new File(getClass().getClassLoader().getResource("text").toURI()).listFiles();
+        assertTrue(resources != null && resources.length > 0);
+        for (File resource : resources) {
+            for (String line : Files.readAllLines(resource.toPath(), Charset.forName("UTF-8"))) {
+                strings.add(line);
+                strings.addAll(Arrays.asList(line.trim().split("\\s+")));
+            }
+        }
+
+        FontRenderContext renderContext = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)
+                .createGraphics().getFontRenderContext();
+        FontMeasurer measurer = new FontMeasurer(new Font("Dialog", Font.BOLD, 12), false);
+        for (Font baseFont : new Font[]{
+                new Font("Dialog", Font.BOLD, 12),
+                new Font("Dialog", Font.PLAIN, 12),
+                new Font("Monospaced", Font.PLAIN, 12)}) {
+            for (float size = 6; size <= 30; size += 1.5f) {
+                Font font = baseFont.deriveFont(size);
+                for (String string : strings) {
+                    assertEquals(font + " \"" + string + "\"",
+                            (int) font.getStringBounds(string, renderContext).getWidth(),
+                            measurer.getWidthFor(string, font));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.stathissideris.ditaa.text;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks CellSet against a TreeSet of cells in the y-then-x order it
+ * used to be backed by.
+ */
+public class TestCellSet {
+
+    @Test
+    public void testRandomOperations()
+    {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            CellSet set = new CellSet();
+            TreeSet<TextGrid.Cell> expected = new TreeSet<>((c1, c2) ->
+                    c1.y != c2.y ? Integer.compare(c1.y, c2.y) : Integer.compare(c1.x, c2.x));
+
+            for (int i = 0; i < 2000; i++) {
+                TextGrid.Cell cell = new TextGrid.Cell(random.nextInt(30) - 5, random.nextInt(30) - 5);
+                switch (random.nextInt(4)) {
+                    case 0:
+                    case 1:
+                        set.add(cell);
+                        expected.add(cell);
+                        break;
+                    case 2:
+                        set.remove(cell);
+                        expected.remove(cell);
+                        break;
+                    default:
+                        assertEquals(expected.contains(cell), set.contains(cell));
+                }
+                if (i % 100 == 0) assertSameCells(expected, set);
+            }
+            assertSameCells(expected, set);
+
+            CellSet copy = new CellSet(set);
+            assertEquals(set, copy);
+            assertEquals(set.hashCode(), copy.hashCode());
+
+            copy.translate(3, -2);
+            TreeSet<TextGrid.Cell> translated = new TreeSet<>(expected.comparator());
+            for (TextGrid.Cell cell : expected) {
+                translated.add(new TextGrid.Cell(cell.x + 3, cell.y - 2));
+            }
+            assertSameCells(translated, copy);
+            if (!expected.isEmpty()) assertFalse(set.equals(copy));
+
+            copy.subtractSet(set);
+            translated.removeAll(expected);
+            assertSameCells(translated, copy);
+        }
+    }
+
+    @Test
+    public void testIteratorRemove()
+    {
+        CellSet set = new CellSet();
+        for (int i = 0; i < 100; i++) set.add(new TextGrid.Cell(i % 10, i / 10));
+        for (Iterator<TextGrid.Cell> it = set.iterator(); it.hasNext(); ) {
+            if (it.next().x % 2 == 0) it.remove();
+        }
+        assertEquals(50, set.size());
+        for (TextGrid.Cell cell : set) assertTrue(cell.x % 2 == 1);
+        assertEquals(1, set.getMinX());
+        assertEquals(9, set.getMaxX());
+    }
+
+    @Test
+    public void testDistinctBoundaries()
+    {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            CellSet set = new CellSet();
+            int width = 1 + random.nextInt(25);
+            int height = 1 + random.nextInt(25);
+            for (int y = -1; y < height; y++) {
+                for (int x = -1; x < width; x++) {
+                    if (random.nextInt(3) > 0) set.add(new TextGrid.Cell(x, y));
+                }
+            }
+
+            //each component is the flood fill from its first cell
+            List<CellSet> expected = new ArrayList<>();
+            CellSet visited = new CellSet();
+            for (TextGrid.Cell start : set) {
+                if (start.x < 0 || start.y < 0 || visited.contains(start)) continue;
+                CellSet component = new CellSet();
+                List<TextGrid.Cell> stack = new ArrayList<>();
+                stack.add(start);
+                visited.add(start);
+                while (!stack.isEmpty()) {
+                    TextGrid.Cell cell = stack.remove(stack.size() - 1);
+                    component.add(cell);
+                    for (TextGrid.Cell neighbour : new TextGrid.Cell[]{
+                            cell.getNorth(), cell.getSouth(), cell.getEast(), cell.getWest()}) {
+                        if (neighbour.x >= 0 && neighbour.y >= 0
+                                && set.contains(neighbour) && !visited.contains(neighbour)) {
+                            visited.add(neighbour);
+                            stack.add(neighbour);
+                        }
+                    }
+                }
+                expected.add(component);
+            }
+            assertEquals(expected, set.breakIntoDistinctBoundaries());
+        }
+    }
+
+    @Test
+    public void testFilledBitmap()
+    {
+        Random random = new Random(42);
+        for (int round = 0; round < 300; round++) {
+            int width = 4 + random.nextInt(20);
+            int height = 4 + random.nextInt(15);
+            TextGrid grid = new TextGrid(width, height);
+            for (int i = random.nextInt(5); i >= 0; i--) {
+                int x0 = random.nextInt(width - 2);
+                int y0 = random.nextInt(height - 2);
+                int x1 = x0 + 2 + random.nextInt(width - x0 - 2);
+                int y1 = y0 + 2 + random.nextInt(height - y0 - 2);
+                for (int x = x0; x <= x1; x++) {
+                    grid.set(x, y0, '-');
+                    grid.set(x, y1, '-');
+                }
+                for (int y = y0; y <= y1; y++) {
+                    grid.set(x0, y, '|');
+                    grid.set(x1, y, '|');
+                }
+                grid.set(x0, y0, '+');
+                grid.set(x1, y0, '+');
+                grid.set(x0, y1, '+');
+                grid.set(x1, y1, '+');
+            }
+
+            for (CellSet set : grid.getAllBoundaries().breakIntoDistinctBoundaries(grid)) {
+                CellSet expected = set.getFilledEquivalent(grid);
+                CellBitmap bitmap = set.getFilledBitmap(grid, width + 2, height + 2);
+                assertEquals(expected.size(), bitmap.size());
+                for (TextGrid.Cell cell : expected) assertTrue(bitmap.contains(cell.x, cell.y));
+            }
+        }
+    }
+
+    @Test
+    public void testNestedBoxes()
+    {
+        String[] rows = {
+                "             ",
+                " +---------+ ",
+                " |         | ",
+                " |  +---+  | ",
+                " |  |   |  | ",
+                " |  +---+  | ",
+                " |         | ",
+                " +---------+ ",
+                "             "
+        };
+        TextGrid grid = new TextGrid(rows[0].length(), rows.length);
+        for (int y = 0; y < rows.length; y++) grid.setRow(y, rows[y]);
+        List<CellSet> boxes = grid.getAllBoundaries().breakIntoDistinctBoundaries(grid);
+        assertEquals(2, boxes.size());
+
+        //the outline of the 11x7 box and then of the 5x3 one
+        assertEquals(32, boxes.get(0).size());
+        assertEquals(12, boxes.get(1).size());
+        assertEquals(11 * 7, boxes.get(0).getFilledEquivalent(grid).size());
+        assertEquals(5 * 3, boxes.get(1).getFilledEquivalent(grid).size());
+
+        CellBitmap inner = boxes.get(1).getFilledBitmap(grid, grid.getWidth(), grid.getHeight());
+        assertEquals(5 * 3, inner.size());
+        assertTrue(inner.contains(6, 4));
+        assertFalse(inner.contains(2, 2));
+        assertTrue(boxes.get(0).getFilledBitmap(grid, grid.getWidth(), grid.getHeight()).intersects(inner));
+    }
+
+    private static void assertSameCells(TreeSet<TextGrid.Cell> expected, CellSet set)
+    {
+        assertEquals(expected.size(), set.size());
+        List<TextGrid.Cell> cells = new ArrayList<>();
+        for (TextGrid.Cell cell : set) cells.add(cell);
+        assertEquals(new ArrayList<>(expected), cells);
+        assertEquals(expected.hashCode(), set.hashCode());
+
+        CellSet rebuilt = new CellSet();
+        for (TextGrid.Cell cell : expected) rebuilt.add(cell);
+        assertEquals(rebuilt.getFingerprint(), set.getFingerprint());
+        assertEquals(rebuilt, set);
+
+        int minX = Integer.MAX_VALUE, maxX = 0, minY = Integer.MAX_VALUE, maxY = 0;
+        for (TextGrid.Cell cell : expected) {
+            minX = Math.min(minX, cell.x);
+            maxX = Math.max(maxX, cell.x);
+            minY = Math.min(minY, cell.y);
+            maxY = Math.max(maxY, cell.y);
+        }
+        assertEquals(minX, set.getMinX());
+        assertEquals(maxX, set.getMaxX());
+        assertEquals(minY, set.getMinY());
+        assertEquals(maxY, set.getMaxY());
+    }
+}
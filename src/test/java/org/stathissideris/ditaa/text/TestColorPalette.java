@@ -0,0 +1,130 @@
+package org.stathissideris.ditaa.text;
+
+import org.junit.Test;
+import org.stathissideris.ditaa.core.ProcessingOptions;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the table driven replacement of human color codes against the
+ * String.replaceAll() per color name it replaces.
+ */
+public class TestColorPalette {
+
+    private static final String[] PIECES = {
+            "cRED", "cBLU", "cGRE", "cPNK", "cYEL", "cBLK", "cORA",
+            "c", "c", "cc", "R", "E", "D", "cRE", "cE32", "C", " ", "-", "x"
+    };
+
+    @Test
+    public void testRandomRows()
+    {
+        Map<String, String> defaults = getDefaultColorCodes();
+        Map<String, String> custom = new HashMap<String, String>();
+        custom.put("RED", "123");
+        custom.put("ORA", "F80");
+        Map<String, String> merged = new HashMap<String, String>(defaults);
+        merged.putAll(custom);
+        ColorPalette customPalette = ColorPalette.DEFAULT.with(custom);
+
+        Random random = new Random(42);
+        for (int round = 0; round < 2000; round++) {
+            int width = 1 + random.nextInt(16);
+            StringBuilder row = new StringBuilder();
+            while (row.length() < width) row.append(PIECES[random.nextInt(PIECES.length)]);
+            String text = row.substring(0, width);
+
+            assertEquals(text, replaceAll(text, defaults), replace(text, ColorPalette.DEFAULT));
+            assertEquals(text, replaceAll(text, merged), replace(text, customPalette));
+        }
+    }
+
+    @Test
+    public void testRowEdges()
+    {
+        //a code in the last four chars, codes back to back and a c, or
+        //the start of a code, at the end of the row
+        String[] rows = {"cRED", "abcRED", "xcREDcBLU", "cREDcBLUc", "ccRED", "cBLKcR", "cRE", "c", "REDc"};
+        String[] expected = {"cE32", "abcE32", "xcE32c55B", "cE32c55Bc", "ccE32", "c000cR", "cRE", "c", "REDc"};
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(rows[i], expected[i], replace(rows[i], ColorPalette.DEFAULT));
+            assertEquals(rows[i], replaceAll(rows[i], getDefaultColorCodes()), expected[i]);
+        }
+    }
+
+    @Test
+    public void testCustomCodesFromOptions() throws Exception
+    {
+        HashMap<String, String> custom = new HashMap<String, String>();
+        custom.put("RED", "123");
+        custom.put("ORA", "F80");
+        ProcessingOptions options = new ProcessingOptions();
+        options.setHumanColorCodes(custom);
+
+        TextGrid grid = new TextGrid();
+        grid.initialiseWithText("cRED cORA cBLU", options);
+        //the rows start after a blank border of 2
+        assertEquals("c123 cF80 c55B", grid.getRow(2).toString().trim());
+    }
+
+    @Test
+    public void testInvalidCodes() throws Exception
+    {
+        String[][] invalid = {{"RE", "E32"}, {"REDD", "E32"}, {"RED", "e32"}, {"RED", "GGG"}, {"RED", "E3"}};
+        for (String[] code : invalid) {
+            HashMap<String, String> custom = new HashMap<String, String>();
+            custom.put(code[0], code[1]);
+            try {
+                ColorPalette.DEFAULT.with(custom);
+                fail(code[0] + " -> " + code[1] + " was accepted");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+
+            ProcessingOptions options = new ProcessingOptions();
+            options.setHumanColorCodes(custom);
+            try {
+                new TextGrid().initialiseWithText("cRED", options);
+                fail(code[0] + " -> " + code[1] + " was accepted from the options");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+
+    private static String replace(String text, ColorPalette palette)
+    {
+        TextGrid grid = new TextGrid(text.length(), 1);
+        grid.setRow(0, text);
+        grid.replaceHumanColorCodes(palette);
+        return grid.getRow(0).toString();
+    }
+
+    /**
+     * The way the codes used to be replaced
+     */
+    private static String replaceAll(String text, Map<String, String> colorCodes)
+    {
+        for (Map.Entry<String, String> entry : colorCodes.entrySet()) {
+            text = text.replaceAll("c" + entry.getKey(), "c" + entry.getValue());
+        }
+        return text;
+    }
+
+    private static Map<String, String> getDefaultColorCodes()
+    {
+        HashMap<String, String> colorCodes = new HashMap<String, String>();
+        colorCodes.put("GRE", "9D9");
+        colorCodes.put("BLU", "55B");
+        colorCodes.put("PNK", "FAA");
+        colorCodes.put("RED", "E32");
+        colorCodes.put("YEL", "FF3");
+        colorCodes.put("BLK", "000");
+        return colorCodes;
+    }
+}
@@ -0,0 +1,131 @@
+package org.stathissideris.ditaa.text;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the compiled GridPattern matcher gives the same results
+ * as the regular expressions it replaces.
+ */
+public class TestGridPattern {
+
+    /**
+     * One character of each category the patterns can tell apart, plus the
+     * ones that regular expressions treat specially
+     */
+    private static final char[] ALPHABET = {
+            '-', '=', '/', '\\', '+', '|', ':', '*', ' ', 'a', 0,
+            '\n', '\r', '\u2028', '\uD83D', '\uDE00'
+    };
+
+    @Test
+    public void testAllRowsOfAllPatterns()
+    {
+        for (GridPattern pattern : getAllPatterns()) {
+            String[] matchingRows = new String[3];
+            for (int row = 0; row < 3; row++) {
+                matchingRows[row] = findMatchingRow(pattern, matchingRows, row);
+            }
+
+            for (int row = 0; row < 3; row++) {
+                for (char c0 : ALPHABET) {
+                    for (char c1 : ALPHABET) {
+                        for (char c2 : ALPHABET) {
+                            TextGrid grid = new TextGrid(3, 3);
+                            for (int y = 0; y < 3; y++) {
+                                grid.setRow(y, y == row ? new String(new char[]{c0, c1, c2}) : matchingRows[y]);
+                            }
+                            assertEquals(
+                                    "pattern\n" + pattern + "grid\n" + grid,
+                                    pattern.isMatchedBy(grid),
+                                    pattern.isMatchedBy(grid, 1, 1));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRandomGrids()
+    {
+        Random random = new Random(42);
+        List<GridPatternGroup> groups = getAllGroups();
+        for (int i = 0; i < 200; i++) {
+            TextGrid grid = new TextGrid(12, 8);
+            for (int y = 0; y < grid.getHeight(); y++) {
+                for (int x = 0; x < grid.getWidth(); x++) {
+                    grid.set(x, y, ALPHABET[random.nextInt(ALPHABET.length)]);
+                }
+            }
+            //includes the cells on and outside the edges of the grid
+            for (int y = -1; y <= grid.getHeight(); y++) {
+                for (int x = -1; x <= grid.getWidth(); x++) {
+                    TextGrid subGrid = grid.getTestingSubGrid(new TextGrid.Cell(x, y));
+                    for (GridPatternGroup group : groups) {
+                        assertEquals(
+                                "grid\n" + grid + "at " + x + ", " + y,
+                                group.isAnyMatchedBy(subGrid),
+                                group.isAnyMatchedBy(grid, x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds a row that matches row <code>row</code> of the pattern,
+     * given the ones found for the rows above it. The regular expressions
+     * only look at as many rows as the grid has.
+     */
+    private static String findMatchingRow(GridPattern pattern, String[] rowsAbove, int row)
+    {
+        for (char c0 : ALPHABET) {
+            for (char c1 : ALPHABET) {
+                for (char c2 : ALPHABET) {
+                    String candidate = new String(new char[]{c0, c1, c2});
+                    TextGrid grid = new TextGrid(3, row + 1);
+                    for (int y = 0; y < row; y++) {
+                        grid.setRow(y, rowsAbove[y]);
+                    }
+                    grid.setRow(row, candidate);
+                    if (pattern.isMatchedBy(grid)) return candidate;
+                }
+            }
+        }
+        throw new IllegalStateException("Nothing matches row " + row + " of pattern\n" + pattern);
+    }
+
+    private static List<GridPatternGroup> getAllGroups()
+    {
+        List<GridPatternGroup> result = new ArrayList<GridPatternGroup>();
+        for (Field field : GridPatternGroup.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == GridPatternGroup.class) {
+                try {
+                    result.add((GridPatternGroup) field.get(null));
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<GridPattern> getAllPatterns()
+    {
+        List<GridPattern> result = new ArrayList<GridPattern>();
+        for (GridPatternGroup group : getAllGroups()) {
+            for (GridPattern pattern : group) {
+                if (!result.contains(pattern)) result.add(pattern);
+            }
+        }
+        return result;
+    }
+}
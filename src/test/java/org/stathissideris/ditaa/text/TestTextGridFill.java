@@ -0,0 +1,111 @@
+package org.stathissideris.ditaa.text;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the scanline fills of TextGrid against a plain cell by cell
+ * flood fill.
+ */
+public class TestTextGridFill {
+
+    private static final char[] ALPHABET = {' ', ' ', ' ', '*', '*', 'a'};
+
+    @Test
+    public void testRandomGrids()
+    {
+        Random random = new Random(42);
+        for (int round = 0; round < 300; round++) {
+            int width = 1 + random.nextInt(20);
+            int height = 1 + random.nextInt(20);
+            TextGrid grid = new TextGrid(width, height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    grid.set(x, y, ALPHABET[random.nextInt(ALPHABET.length)]);
+                }
+            }
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            String message = "grid\n" + grid + "from " + x + ", " + y;
+
+            TextGrid expectedGrid = new TextGrid(grid);
+            CellSet expectedBoundaries = new CellSet();
+            floodFill(expectedGrid, x, y, (char) 1, expectedBoundaries);
+            TextGrid actualGrid = new TextGrid(grid);
+            assertEquals(message, expectedBoundaries, actualGrid.findBoundariesExpandingFrom(TextGrid.Cell.at(x, y)));
+            assertTrue(message, expectedGrid.equals(actualGrid));
+
+            expectedGrid = new TextGrid(grid);
+            CellSet expectedFilled = floodFill(expectedGrid, x, y, '-', new CellSet());
+            actualGrid = new TextGrid(grid);
+            assertEquals(message, expectedFilled, actualGrid.fillContinuousArea(x, y, '-'));
+            assertTrue(message, expectedGrid.equals(actualGrid));
+        }
+    }
+
+    @Test
+    public void testNestedBoxes()
+    {
+        TextGrid grid = gridOf(
+                "             ",
+                " +---------+ ",
+                " |         | ",
+                " |  +---+  | ",
+                " |  |   |  | ",
+                " |  +---+  | ",
+                " |         | ",
+                " +---------+ ",
+                "             ");
+
+        CellSet inside = new CellSet();
+        for (int x = 5; x <= 7; x++) inside.add(TextGrid.Cell.at(x, 4));
+        assertEquals(inside, new TextGrid(grid).fillContinuousArea(6, 4, 'x'));
+
+        //the blanks between the two boxes
+        CellSet between = new CellSet();
+        for (int y = 2; y <= 6; y++) {
+            for (int x = 2; x <= 10; x++) {
+                if (x < 4 || x > 8 || y < 3 || y > 5) between.add(TextGrid.Cell.at(x, y));
+            }
+        }
+        TextGrid filledGrid = new TextGrid(grid);
+        assertEquals(between, filledGrid.fillContinuousArea(2, 2, 'x'));
+        assertEquals(30, between.size());
+        assertEquals('x', filledGrid.get(10, 6));
+        assertEquals(' ', filledGrid.get(6, 4));
+    }
+
+    private static CellSet floodFill(TextGrid grid, int x, int y, char newChar, CellSet boundaries)
+    {
+        CellSet filled = new CellSet();
+        char oldChar = grid.get(x, y);
+        Deque<TextGrid.Cell> stack = new ArrayDeque<>();
+        stack.push(TextGrid.Cell.at(x, y));
+        while (!stack.isEmpty()) {
+            TextGrid.Cell cell = stack.pop();
+            if (grid.get(cell) != oldChar) continue;
+            grid.set(cell, newChar);
+            filled.add(cell);
+            for (TextGrid.Cell neighbour : new TextGrid.Cell[]{
+                    cell.getNorth(), cell.getSouth(), cell.getEast(), cell.getWest()}) {
+                char c = grid.get(neighbour);
+                if (c == oldChar) stack.push(neighbour);
+                else if (c == '*') boundaries.add(neighbour);
+            }
+        }
+        return filled;
+    }
+
+    private static TextGrid gridOf(String... rows)
+    {
+        TextGrid grid = new TextGrid(rows[0].length(), rows.length);
+        for (int y = 0; y < rows.length; y++) grid.setRow(y, rows[y]);
+        return grid;
+    }
+}
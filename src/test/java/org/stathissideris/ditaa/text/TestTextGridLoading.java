@@ -0,0 +1,156 @@
+package org.stathissideris.ditaa.text;
+
+import org.junit.Test;
+import org.stathissideris.ditaa.core.ProcessingOptions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the streaming TextGrid.loadFrom() reads the same grid as
+ * initialiseWithText(), however the input is split between reads.
+ */
+public class TestTextGridLoading {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * How many bytes the channel hands over per read; the last one is
+     * more than the 8192 bytes the decoder reads at a time
+     */
+    private static final int[] CHUNK_SIZES = {1, 2, 3, 5, 8192, 100000};
+
+    @Test
+    public void testCarriageReturnLineFeedAcrossBufferBoundary()
+    {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 8191 - 3) text.append("ab\n");
+        while (text.length() < 8191) text.append('c');
+        //the \r is the last char of the first buffer and the \n the first of the next
+        text.append("\r\nend\r\n");
+
+        TextGrid grid = assertLoadsLikeText(text.toString());
+        assertEquals(-1, grid.toString().indexOf("\\r"));
+    }
+
+    @Test
+    public void testLoneTrailingCarriageReturn()
+    {
+        assertLoadsLikeText("+--+\n|  |\n+--+\r");
+        assertLoadsLikeText("\r");
+        assertLoadsLikeText("a\r\rb\r");
+    }
+
+    @Test
+    public void testTabAfterRowBreak()
+    {
+        TextGrid grid = assertLoadsLikeText("a\tb\n\tc\r\n\td\n\t");
+        //the tab of the second row is counted from the start of that row
+        assertEquals('c', grid.get(2 + ProcessingOptions.DEFAULT_TAB_SIZE, 3));
+    }
+
+    @Test
+    public void testMultiByteCharacterAcrossReads()
+    {
+        //each box drawing char is three bytes long in UTF-8 and the e-acute two
+        assertLoadsLikeText("\u250C\u2500\u2510\n\u2502\u00E9\u2502\n\u2514\u2500\u2518");
+    }
+
+    @Test
+    public void testTrailingBlankRows()
+    {
+        TextGrid grid = assertLoadsLikeText("+-+\n| |\n+-+\n\n   \n\t\r\n");
+        //the three rows of the box and the border of 2 around them
+        assertEquals(3 + 4, grid.getHeight());
+    }
+
+    @Test
+    public void testSliceOfLargerText() throws Exception
+    {
+        String diagram = "+--------+\n|  c0F0  |\n| {d}    +--->\n+--------+\r\n\t*\n";
+        String before = "Some text\nbefore +-+\n";
+        String after = "\n+--+ and after";
+        StringBuilder document = new StringBuilder(before).append(diagram).append(after);
+        int start = before.length();
+        int end = start + diagram.length();
+
+        TextGrid expected = new TextGrid();
+        expected.initialiseWithText(diagram, null);
+
+        TextGrid fromSequence = new TextGrid();
+        fromSequence.initialiseWithText(document, start, end, null);
+        assertEquals(expected.toString(), fromSequence.toString());
+        assertTrue(expected.equals(fromSequence));
+
+        TextGrid fromArray = new TextGrid();
+        fromArray.initialiseWithText(document.toString().toCharArray(), start, diagram.length(), null);
+        assertEquals(expected.toString(), fromArray.toString());
+        assertTrue(expected.equals(fromArray));
+    }
+
+    /**
+     * Loads <code>text</code> through a channel for each of the chunk
+     * sizes and checks that each grid equals the one initialiseWithText()
+     * makes out of it.
+     *
+     * @return the grid initialiseWithText() made
+     */
+    private static TextGrid assertLoadsLikeText(String text)
+    {
+        ProcessingOptions options = new ProcessingOptions();
+        options.setCharacterEncoding(UTF_8);
+
+        TextGrid expected = new TextGrid();
+        expected.initialiseWithText(text, 0, text.length(), options);
+
+        for (int chunkSize : CHUNK_SIZES) {
+            TextGrid grid = new TextGrid();
+            try {
+                grid.loadFrom(new ChunkedChannel(text.getBytes(UTF_8), chunkSize), options);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            assertEquals("chunks of " + chunkSize, expected.toString(), grid.toString());
+            assertTrue("chunks of " + chunkSize, expected.equals(grid));
+        }
+        return expected;
+    }
+
+    /**
+     * Hands over at most <code>chunkSize</code> bytes per read.
+     */
+    private static class ChunkedChannel implements ReadableByteChannel {
+        private final byte[] bytes;
+        private final int chunkSize;
+        private int position = 0;
+
+        ChunkedChannel(byte[] bytes, int chunkSize)
+        {
+            this.bytes = bytes;
+            this.chunkSize = chunkSize;
+        }
+
+        public int read(ByteBuffer dst)
+        {
+            if (position == bytes.length) return -1;
+            int count = Math.min(Math.min(chunkSize, bytes.length - position), dst.remaining());
+            dst.put(bytes, position, count);
+            position += count;
+            return count;
+        }
+
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        public void close()
+        {
+        }
+    }
+}
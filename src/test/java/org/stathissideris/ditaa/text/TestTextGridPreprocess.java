@@ -0,0 +1,130 @@
+package org.stathissideris.ditaa.text;
+
+import org.junit.Test;
+import org.stathissideris.ditaa.core.TaskRunner;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the single sweep of TextGrid.preprocess() against the passes it
+ * stands for, run one after the other.
+ */
+public class TestTextGridPreprocess {
+
+    private static final String[] PIECES = {
+            " ", " ", " ", "-", "-", "|", "|", "+", "/", "\\", "*", "o", "a", "v", "^", "<", ">", ":", "=",
+            "cF00", "{d}", "{o}", "{io}", "+-v", "-a-"
+    };
+
+    @Test
+    public void testRandomGrids()
+    {
+        Random random = new Random(42);
+        for (int round = 0; round < 300; round++) {
+            TextGrid grid = makeRandomGrid(random, 1 + random.nextInt(16), 1 + random.nextInt(12));
+            PreprocessedGrid preprocessed = new TextGrid(grid).preprocess();
+            String message = "grid\n" + grid;
+
+            TextGrid workGrid = new TextGrid(grid);
+            workGrid.replaceTypeOnLine();
+            workGrid.replacePointMarkersOnLine();
+            assertTrue(message, workGrid.equals(preprocessed.workGrid));
+            assertEquals(message, workGrid.getAllBoundaries(), preprocessed.boundaries);
+            assertEquals(message, workGrid.findArrowheads(), preprocessed.arrowheads);
+
+            TextGrid textGrid = new TextGrid(grid);
+            textGrid.removeNonText();
+            assertTrue(message, textGrid.equals(preprocessed.textGrid));
+
+            assertEquals(message, grid.getPointMarkersOnLine(), preprocessed.pointMarkers);
+            assertEquals(message, grid.findColorCodes().size(), preprocessed.colorCodes.size());
+            assertEquals(message, grid.findMarkupTags().size(), preprocessed.markupTags.size());
+        }
+    }
+
+    @Test
+    public void testDashedCrossing()
+    {
+        TextGrid grid = gridOf(
+                "    :   ",
+                " ---+===",
+                "    :   ");
+        PreprocessedGrid preprocessed = new TextGrid(grid).preprocess();
+
+        CellSet expected = new CellSet();
+        expected.add(TextGrid.Cell.at(4, 0));
+        for (int x = 1; x <= 7; x++) expected.add(TextGrid.Cell.at(x, 1));
+        expected.add(TextGrid.Cell.at(4, 2));
+        assertEquals(expected, preprocessed.boundaries);
+        assertTrue(grid.equals(preprocessed.workGrid));
+        assertTrue(preprocessed.textGrid.equals(new TextGrid(grid.getWidth(), grid.getHeight())));
+        assertTrue(preprocessed.arrowheads.isEmpty());
+        assertEquals(0, preprocessed.pointMarkers.size());
+    }
+
+    @Test
+    public void testPointMarkersOnCorners()
+    {
+        PreprocessedGrid preprocessed = gridOf(
+                "*---+",
+                "|   |",
+                "|   *",
+                "|   |",
+                "+---*").preprocess();
+
+        CellSet expected = new CellSet();
+        expected.add(TextGrid.Cell.at(0, 0));
+        expected.add(TextGrid.Cell.at(4, 2));
+        expected.add(TextGrid.Cell.at(4, 4));
+        assertEquals(expected, preprocessed.pointMarkers);
+        //the markers on corners become corners, the one on the side a line
+        assertTrue(gridOf(
+                "+---+",
+                "|   |",
+                "|   |",
+                "|   |",
+                "+---+").equals(preprocessed.workGrid));
+    }
+
+    @Test
+    public void testStripedScans()
+    {
+        Random random = new Random(42);
+        TaskRunner tasks = TaskRunner.withParallelism(4);
+        for (int round = 0; round < 5; round++) {
+            TextGrid grid = makeRandomGrid(random, 1 + random.nextInt(60), 100 + random.nextInt(300));
+
+            PreprocessedGrid expected = new TextGrid(grid).preprocess();
+            PreprocessedGrid actual = new TextGrid(grid).preprocess(tasks);
+            assertTrue(expected.workGrid.equals(actual.workGrid));
+            assertTrue(expected.textGrid.equals(actual.textGrid));
+            assertEquals(expected.boundaries, actual.boundaries);
+            assertEquals(expected.arrowheads, actual.arrowheads);
+            assertEquals(expected.pointMarkers, actual.pointMarkers);
+
+            assertEquals(grid.getAllNonBlank(), grid.getAllNonBlank(tasks));
+            assertEquals(grid.getAllBlanksBetweenCharacters(), grid.getAllBlanksBetweenCharacters(tasks));
+        }
+    }
+
+    private static TextGrid gridOf(String... rows)
+    {
+        TextGrid grid = new TextGrid(rows[0].length(), rows.length);
+        for (int y = 0; y < rows.length; y++) grid.setRow(y, rows[y]);
+        return grid;
+    }
+
+    private static TextGrid makeRandomGrid(Random random, int width, int height)
+    {
+        TextGrid grid = new TextGrid(width, height);
+        for (int y = 0; y < height; y++) {
+            StringBuilder row = new StringBuilder();
+            while (row.length() < width) row.append(PIECES[random.nextInt(PIECES.length)]);
+            grid.setRow(y, row.substring(0, width));
+        }
+        return grid;
+    }
+}
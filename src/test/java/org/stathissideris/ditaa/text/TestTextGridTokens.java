@@ -0,0 +1,60 @@
+package org.stathissideris.ditaa.text;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the color code and markup tag lexer of TextGrid against the
+ * regular expressions it replaces.
+ */
+public class TestTextGridTokens {
+
+    private static final char[] ALPHABET = {
+            'c', 'c', 'A', 'F', '0', '9', 'G', 'a', '{', '{', '}', '}', 'd', 's', 'o', ' ', '\r', '\u2028'
+    };
+
+    @Test
+    public void testRandomRows()
+    {
+        Pattern colorCodePattern = Pattern.compile("c[A-F0-9]{3}");
+        Pattern tagPattern = Pattern.compile("\\{(.+?)\\}");
+        Random random = new Random(42);
+        for (int round = 0; round < 2000; round++) {
+            int width = 1 + random.nextInt(12);
+            char[] row = new char[width];
+            for (int x = 0; x < width; x++) row[x] = ALPHABET[random.nextInt(ALPHABET.length)];
+            TextGrid grid = new TextGrid(width, 1);
+            grid.setRow(0, new String(row));
+
+            List<String> expected = new ArrayList<>();
+            List<String> actual = new ArrayList<>();
+            String text = new String(row);
+            for (int x = 0; x < width - 3; x++) {
+                if (colorCodePattern.matcher(text.substring(x, x + 4)).matches()) expected.add("color at " + x);
+                if (row[x] == '{') {
+                    Matcher matcher = tagPattern.matcher(text.substring(x));
+                    if (matcher.find() && Arrays.asList("d", "s", "io", "c", "mo", "tr", "o").contains(matcher.group(1)))
+                        expected.add(matcher.group(1) + " at " + x);
+                }
+            }
+            for (TextGrid.CellColorPair pair : grid.findColorCodes()) actual.add("color at " + pair.cell.x);
+            for (TextGrid.CellTagPair pair : grid.findMarkupTags()) actual.add(pair.tag + " at " + pair.cell.x);
+            actual.sort((s1, s2) -> Integer.compare(positionOf(s1), positionOf(s2)));
+            expected.sort((s1, s2) -> Integer.compare(positionOf(s1), positionOf(s2)));
+            assertEquals(text, expected, actual);
+        }
+    }
+
+    private static int positionOf(String token)
+    {
+        return Integer.parseInt(token.substring(token.lastIndexOf(' ') + 1));
+    }
+}